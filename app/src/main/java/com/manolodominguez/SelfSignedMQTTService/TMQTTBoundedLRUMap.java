@@ -0,0 +1,177 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class implements a map indexed by topic that evicts its least recently used entries when
+ * the number of entries or the sum of the sizes of their values exceed the configured limits. It
+ * is not thread safe, so callers have to synchronize the access to it.
+ *
+ * @param <V> The type of the values stored in the map.
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTBoundedLRUMap<V> {
+
+    private int maxEntries;
+    private long maxBytes;
+    private long bytes;
+    private LinkedHashMap<String, TEntry<V>> entries;
+
+    /**
+     * This is the constructor of the class. It creates a new empty instance of
+     * TMQTTBoundedLRUMap.
+     *
+     * @param maxEntries The maximum number of entries kept in the map.
+     * @param maxBytes   The maximum sum of the sizes of the values kept in the map.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTBoundedLRUMap(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.bytes = 0;
+        // Access ordered map, so the first entry is always the least recently used one.
+        this.entries = new LinkedHashMap<String, TEntry<V>>(16, 0.75f, true);
+    }
+
+    /**
+     * This method stores the value of a given topic, replacing the previous one, and evicts least
+     * recently used entries until both limits are honored again. A value larger than the maximum
+     * number of bytes is not stored at all, but the previous value of the topic is removed anyway.
+     *
+     * @param topic The topic the value is associated to.
+     * @param value The value to be stored.
+     * @param size  The size of the value, in bytes.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void put(String topic, V value, long size) {
+        this.remove(topic);
+        if (size > this.maxBytes) {
+            return;
+        }
+        this.entries.put(topic, new TEntry<V>(value, size));
+        this.bytes += size;
+        Iterator<Map.Entry<String, TEntry<V>>> iterator = this.entries.entrySet().iterator();
+        while (iterator.hasNext() && ((this.entries.size() > this.maxEntries) || (this.bytes > this.maxBytes))) {
+            this.bytes -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * This method returns the value of a given topic and marks it as the most recently used one.
+     *
+     * @param topic The topic whose value is requested.
+     * @return V. The value of the topic or NULL, if it is not stored.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public V get(String topic) {
+        TEntry<V> entry = this.entries.get(topic);
+        return (entry == null) ? null : entry.value;
+    }
+
+    /**
+     * This method removes the value of a given topic.
+     *
+     * @param topic The topic whose value has to be removed.
+     * @return V. The removed value or NULL, if it was not stored.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public V remove(String topic) {
+        TEntry<V> entry = this.entries.remove(topic);
+        if (entry == null) {
+            return null;
+        }
+        this.bytes -= entry.size;
+        return entry.value;
+    }
+
+    /**
+     * This method removes every value.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * This method returns a copy of the stored values, indexed by topic, from the least to the
+     * most recently used one. It does not change the access order of the entries.
+     *
+     * @return Map. A copy of the stored values.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public Map<String, V> getEntries() {
+        LinkedHashMap<String, V> copy = new LinkedHashMap<String, V>();
+        for (Map.Entry<String, TEntry<V>> entry : this.entries.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().value);
+        }
+        return copy;
+    }
+
+    /**
+     * This method returns the number of entries currently stored.
+     *
+     * @return int. The number of entries currently stored.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * This method returns the sum of the sizes of the values currently stored.
+     *
+     * @return long. The sum of the sizes of the values currently stored.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * This class stores a value together with its size.
+     */
+    private static class TEntry<V> {
+        private V value;
+        private long size;
+
+        private TEntry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
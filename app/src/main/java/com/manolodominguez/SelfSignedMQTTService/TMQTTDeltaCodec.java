@@ -0,0 +1,318 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements a per-topic delta codec for MQTT payloads. Topics that republish nearly
+ * identical state documents can be sent as a binary diff against the last value published on the
+ * same topic instead of the full payload. A complete payload (keyframe) is sent periodically, when
+ * no baseline exists for the topic or when the diff would not be smaller than the payload itself.
+ * Baselines are kept in LRU maps bounded both in number of topics and in total bytes.
+ *
+ * Every encoded payload starts with a frame type byte. A keyframe carries the raw payload after
+ * that byte. A delta frame carries the CRC32 of the baseline it was computed against followed by
+ * a sequence of COPY (offset and length in the baseline) and INSERT (literal bytes) operations.
+ * As plain payloads cannot be told apart from encoded ones, every topic must carry either encoded
+ * payloads or plain payloads, never both.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTDeltaCodec {
+
+    private static final byte FRAME_KEYFRAME = 0x00;
+    private static final byte FRAME_DELTA = 0x01;
+    private static final byte OPERATION_COPY = 0x01;
+    private static final byte OPERATION_INSERT = 0x02;
+    // Size of the blocks of the baseline that are indexed to find matches in new payloads. Smaller
+    // blocks find more matches but generate more COPY operations.
+    private static final int BLOCK_SIZE = 8;
+
+    private int keyframeInterval;
+    private TMQTTBoundedLRUMap<TBaseline> encoderBaselines;
+    private TMQTTBoundedLRUMap<TBaseline> decoderBaselines;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TMQTTDeltaCodec with
+     * empty baselines.
+     *
+     * @param keyframeInterval The maximum number of delta frames sent on a topic between two
+     *                         keyframes.
+     * @param maxTopics        The maximum number of topics whose baseline is kept in memory.
+     * @param maxBaselineBytes The maximum number of bytes used by all the baselines kept in
+     *                         memory.
+     *                         Both limits apply to outbound and inbound baselines separately.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTDeltaCodec(int keyframeInterval, int maxTopics, long maxBaselineBytes) {
+        this.keyframeInterval = keyframeInterval;
+        this.encoderBaselines = new TMQTTBoundedLRUMap<TBaseline>(maxTopics, maxBaselineBytes);
+        this.decoderBaselines = new TMQTTBoundedLRUMap<TBaseline>(maxTopics, maxBaselineBytes);
+    }
+
+    /**
+     * This method encodes a payload that is going to be published on a given topic. It returns a
+     * keyframe or a delta frame against the last payload encoded for the same topic.
+     *
+     * @param topic      The topic the payload is going to be published on.
+     * @param payload    The payload to be encoded.
+     * @param forceKeyframe TRUE, if a keyframe must be generated no matter the state of the
+     *                      baseline (i.e. for retained messages, that can be delivered to
+     *                      subscribers that do not have any baseline). FALSE, otherwise.
+     * @return byte[]. The encoded payload, ready to be published.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized byte[] encode(String topic, byte[] payload, boolean forceKeyframe) {
+        TBaseline baseline = this.encoderBaselines.get(topic);
+        if (!forceKeyframe && (baseline != null) && (baseline.framesSinceKeyframe < this.keyframeInterval)) {
+            byte[] delta = this.computeDelta(baseline, payload);
+            // A delta that is not smaller than the keyframe is useless. Send the keyframe instead.
+            if (delta.length <= payload.length) {
+                this.encoderBaselines.put(topic, new TBaseline(payload.clone(), baseline.framesSinceKeyframe + 1), payload.length);
+                return delta;
+            }
+        }
+        byte[] keyframe = new byte[payload.length + 1];
+        keyframe[0] = FRAME_KEYFRAME;
+        System.arraycopy(payload, 0, keyframe, 1, payload.length);
+        // A payload that does not fit in memory at all is never used as baseline. Next payload on
+        // this topic will be a keyframe.
+        this.encoderBaselines.put(topic, new TBaseline(payload.clone(), 0), payload.length);
+        return keyframe;
+    }
+
+    /**
+     * This method decodes a payload that has been received on a given topic. Keyframes are
+     * returned as they are. Delta frames are applied to the last payload decoded on the same
+     * topic.
+     *
+     * @param topic   The topic the payload has been received on.
+     * @param frame   The encoded payload, as received from the remote MQTT broker.
+     * @return byte[]. The decoded payload or NULL if it cannot be decoded because the baseline
+     * the delta was computed against is not available (i.e. after a reconnection or after being
+     * evicted). In that case the payload should be discarded until the next keyframe arrives.
+     * @throws IllegalArgumentException if the frame is malformed.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized byte[] decode(String topic, byte[] frame) {
+        if (frame.length == 0) {
+            throw new IllegalArgumentException("Empty frame received on topic " + topic);
+        }
+        byte[] payload;
+        if (frame[0] == FRAME_KEYFRAME) {
+            payload = Arrays.copyOfRange(frame, 1, frame.length);
+        } else if (frame[0] == FRAME_DELTA) {
+            TBaseline baseline = this.decoderBaselines.get(topic);
+            if ((baseline == null) || (baseline.crc != readInt(frame, 1))) {
+                return null;
+            }
+            payload = this.applyDelta(baseline.payload, frame);
+        } else {
+            throw new IllegalArgumentException("Unknown frame type " + frame[0] + " received on topic " + topic);
+        }
+        // The caller owns the returned array and could modify it, so the baseline is a copy.
+        this.decoderBaselines.put(topic, new TBaseline(payload.clone(), 0), payload.length);
+        return payload;
+    }
+
+    /**
+     * This method discards every baseline, so that the next payload encoded for each topic will be
+     * a keyframe and no delta frame will be decoded until a keyframe is received. It must be
+     * called whenever the connection to the remote MQTT broker is (re)established, because
+     * messages could have been lost in the meantime.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void reset() {
+        this.encoderBaselines.clear();
+        this.decoderBaselines.clear();
+    }
+
+    /**
+     * This method discards the outbound baseline of a given topic, so that the next payload
+     * encoded for it will be a keyframe. It must be called when an encoded payload could not be
+     * published, because receivers will never get the baseline it left behind.
+     *
+     * @param topic The topic whose outbound baseline has to be discarded.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void discardBaseline(String topic) {
+        this.encoderBaselines.remove(topic);
+    }
+
+    /**
+     * This method returns the number of bytes currently used by all the baselines kept in memory.
+     *
+     * @return long. The number of bytes currently used by all the baselines kept in memory.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized long getBaselineBytes() {
+        return this.encoderBaselines.getBytes() + this.decoderBaselines.getBytes();
+    }
+
+    private byte[] computeDelta(TBaseline baseline, byte[] payload) {
+        byte[] base = baseline.payload;
+        // Index the start offset of every block of the baseline by its hash.
+        HashMap<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            Integer hash = Integer.valueOf(hashBlock(base, offset));
+            if (!blocks.containsKey(hash)) {
+                blocks.put(hash, Integer.valueOf(offset));
+            }
+        }
+        ByteArrayOutputStream delta = new ByteArrayOutputStream(payload.length + 5);
+        delta.write(FRAME_DELTA);
+        writeInt(delta, baseline.crc);
+        int literalStart = 0;
+        int position = 0;
+        while (position + BLOCK_SIZE <= payload.length) {
+            Integer match = blocks.get(Integer.valueOf(hashBlock(payload, position)));
+            int matchLength = 0;
+            if (match != null) {
+                int baseOffset = match.intValue();
+                while ((baseOffset + matchLength < base.length) && (position + matchLength < payload.length)
+                        && (base[baseOffset + matchLength] == payload[position + matchLength])) {
+                    matchLength++;
+                }
+            }
+            if (matchLength >= BLOCK_SIZE) {
+                writeInsert(delta, payload, literalStart, position - literalStart);
+                delta.write(OPERATION_COPY);
+                writeVarInt(delta, match.intValue());
+                writeVarInt(delta, matchLength);
+                position += matchLength;
+                literalStart = position;
+            } else {
+                position++;
+            }
+        }
+        writeInsert(delta, payload, literalStart, payload.length - literalStart);
+        return delta.toByteArray();
+    }
+
+    private byte[] applyDelta(byte[] base, byte[] frame) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(base.length);
+        int[] position = new int[]{5};
+        try {
+            while (position[0] < frame.length) {
+                byte operation = frame[position[0]++];
+                if (operation == OPERATION_COPY) {
+                    int offset = readVarInt(frame, position);
+                    int length = readVarInt(frame, position);
+                    payload.write(base, offset, length);
+                } else if (operation == OPERATION_INSERT) {
+                    int length = readVarInt(frame, position);
+                    payload.write(frame, position[0], length);
+                    position[0] += length;
+                } else {
+                    throw new IllegalArgumentException("Unknown delta operation " + operation);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed delta frame", e);
+        }
+        return payload.toByteArray();
+    }
+
+    private static void writeInsert(ByteArrayOutputStream delta, byte[] payload, int offset, int length) {
+        if (length > 0) {
+            delta.write(OPERATION_INSERT);
+            writeVarInt(delta, length);
+            delta.write(payload, offset, length);
+        }
+    }
+
+    private static int hashBlock(byte[] data, int offset) {
+        int hash = 1;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed variable length integer");
+            }
+            current = data[position[0]++];
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        if (offset + 4 > data.length) {
+            throw new IllegalArgumentException("Truncated delta frame");
+        }
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * This class stores the last payload of a topic, its CRC32 and the number of delta frames sent
+     * since the last keyframe.
+     */
+    private static class TBaseline {
+        private byte[] payload;
+        private int crc;
+        private int framesSinceKeyframe;
+
+        private TBaseline(byte[] payload, int framesSinceKeyframe) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload);
+            this.payload = payload;
+            this.crc = (int) crc32.getValue();
+            this.framesSinceKeyframe = framesSinceKeyframe;
+        }
+    }
+}
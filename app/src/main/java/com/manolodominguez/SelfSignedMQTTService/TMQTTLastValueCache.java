@@ -0,0 +1,121 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class implements a cache that stores the last payload received on each topic, so that it
+ * can be delivered immediately to listeners that are registered after the message arrived. It
+ * evicts least recently used topics when the number of cached topics or the number of bytes used
+ * by the cached payloads exceed the configured limits. Payloads are copied when they are cached
+ * and when they are returned, so modifying them outside does not corrupt the cache.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTLastValueCache {
+
+    private TMQTTBoundedLRUMap<byte[]> lastValues;
+
+    /**
+     * This is the constructor of the class. It creates a new empty instance of
+     * TMQTTLastValueCache.
+     *
+     * @param maxTopics The maximum number of topics whose last payload is cached.
+     * @param maxBytes  The maximum number of bytes used by all the cached payloads.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTLastValueCache(int maxTopics, long maxBytes) {
+        this.lastValues = new TMQTTBoundedLRUMap<byte[]>(maxTopics, maxBytes);
+    }
+
+    /**
+     * This method stores the last payload received on a given topic, replacing the previous one.
+     *
+     * @param topic   The topic the payload has been received on.
+     * @param payload The received payload.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void put(String topic, byte[] payload) {
+        // A payload that does not fit in the cache at all is not cached.
+        this.lastValues.put(topic, payload.clone(), payload.length);
+    }
+
+    /**
+     * This method returns the last payload received on a given topic.
+     *
+     * @param topic The topic whose last payload is requested.
+     * @return byte[]. A copy of the last payload received on the topic or NULL, if it is not
+     * cached.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized byte[] get(String topic) {
+        byte[] payload = this.lastValues.get(topic);
+        return (payload == null) ? null : payload.clone();
+    }
+
+    /**
+     * This method returns the last payload of every cached topic that matches a given topic
+     * filter. Wildcards "+" and "#" are supported, as defined by MQTT.
+     *
+     * @param topicFilter The topic filter, i.e. "sensors/+/temperature" or "sensors/#".
+     * @return Map. A copy of the cached payloads whose topic matches the filter, indexed by
+     * topic.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized Map<String, byte[]> getMatching(String topicFilter) {
+        LinkedHashMap<String, byte[]> matching = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : this.lastValues.getEntries().entrySet()) {
+            if (TMQTTTopicFilter.isMatched(topicFilter, entry.getKey())) {
+                matching.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * This method removes every cached payload.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void clear() {
+        this.lastValues.clear();
+    }
+
+    /**
+     * This method returns the number of bytes currently used by all the cached payloads.
+     *
+     * @return long. The number of bytes currently used by all the cached payloads.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized long getBytes() {
+        return this.lastValues.getBytes();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+/**
+ * This interface has to be implemented by any class that wants to be notified by a
+ * TSelfSignedMQTTService when messages are received from the remote MQTT broker.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public interface TMQTTMessageListener {
+
+    /**
+     * This method is called when a message whose topic matches the topic filter the listener was
+     * registered with is received, or when the listener is registered and a message matching that
+     * filter had already been received. New messages are delivered from the thread of the MQTT
+     * client, that is not the UI thread. Messages already received are delivered from the thread
+     * that registers the listener, before TSelfSignedMQTTService.addMessageListener() returns.
+     * The same payload is delivered to every listener whose filter matches the topic, so it must
+     * be copied before being modified.
+     *
+     * @param topic   The topic at which the received message is associated.
+     * @param payload The payload of the received message, already decoded. It must not be
+     *                modified.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void messageArrived(String topic, byte[] payload);
+}
@@ -0,0 +1,50 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+/**
+ * This enum defines what TMQTTRateLimiter does with a message that is published when there are no
+ * tokens available to send it.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public enum TMQTTOverflowPolicy {
+    /**
+     * The thread that publishes the message waits until there are tokens available and then sends
+     * the message itself. Never use it when publishing from the UI thread.
+     */
+    BLOCK,
+    /**
+     * The message is queued in memory and sent as soon as there are tokens available. When the
+     * queue is full, the oldest queued message is discarded.
+     */
+    DROP_OLDEST,
+    /**
+     * The message is queued in memory and sent as soon as there are tokens available. When the
+     * queue is full, messages are written to disk and sent later, in order, even if the service
+     * is restarted in the meantime. Messages still queued in memory are written to disk too when
+     * the service is stopped. When the number of messages on disk reaches its limit, the oldest
+     * one is discarded.
+     */
+    SPILL_TO_DISK
+}
@@ -0,0 +1,609 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class implements the flow control of the messages published through a
+ * TSelfSignedMQTTService. Every message consumes a token from the bucket of the connection and a
+ * token from the bucket of the first topic filter that matches its topic (if any). When there are
+ * no tokens available, the message is handled according to the configured TMQTTOverflowPolicy.
+ * Queued messages are sent in order by a worker thread, so a message waiting for tokens of its
+ * topic delays the messages queued after it. The worker thread does not send anything while the
+ * connection to the remote MQTT broker is down, so queued messages wait for the connection to be
+ * reestablished instead of being discarded. Tokens are only consumed by messages actually
+ * published.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTRateLimiter {
+
+    // Number of times a queued message is sent before discarding it, and time to wait between
+    // attempts. Attempts made while not connected to the remote MQTT broker are not counted.
+    private static final int MAX_PUBLISH_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final String SPILL_FILE_SUFFIX = ".msg";
+
+    private TPublisher publisher;
+    private TMQTTOverflowPolicy overflowPolicy;
+    private int maxQueuedMessages;
+    private int maxSpilledMessages;
+    private File spillDirectory;
+    private TMQTTTokenBucket connectionBucket;
+    private LinkedHashMap<String, TMQTTTokenBucket> topicBuckets;
+    private ArrayDeque<TQueuedMessage> queue;
+    private long spillHead;
+    private long spillTail;
+    private Thread worker;
+    private boolean running;
+    private boolean connected;
+    private long connectionCount;
+    private long publishedCount;
+    private long droppedCount;
+    private long spilledCount;
+    private long failedCount;
+    private long blockedNanos;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TMQTTRateLimiter. If the
+     * overflow policy is SPILL_TO_DISK, messages spilled to disk by a previous instance that were
+     * not sent yet will be sent once the worker thread is started.
+     *
+     * @param publisher         The object that actually sends the messages to the remote MQTT
+     *                          broker.
+     * @param connectionBucket  The token bucket that limits all the messages of the connection.
+     * @param topicBuckets      The token buckets that limit the messages of specific topics,
+     *                          indexed by topic filter. Wildcards "+" and "#" are supported.
+     * @param overflowPolicy    What to do with messages when there are no tokens available.
+     * @param maxQueuedMessages  The maximum number of messages queued in memory (at least 1).
+     *                           Not used if the overflow policy is BLOCK.
+     * @param maxSpilledMessages The maximum number of messages spilled to disk (at least 1).
+     *                           When it is reached, the oldest spilled message is discarded. Only
+     *                           used if the overflow policy is SPILL_TO_DISK.
+     * @param spillDirectory    The directory where messages are spilled to. Only used if the
+     *                          overflow policy is SPILL_TO_DISK.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTRateLimiter(TPublisher publisher, TMQTTTokenBucket connectionBucket, Map<String, TMQTTTokenBucket> topicBuckets, TMQTTOverflowPolicy overflowPolicy, int maxQueuedMessages, int maxSpilledMessages, File spillDirectory) {
+        if ((maxQueuedMessages < 1) || (maxSpilledMessages < 1)) {
+            throw new IllegalArgumentException("At least one message must fit in the queue and on disk");
+        }
+        this.publisher = publisher;
+        this.connectionBucket = connectionBucket;
+        this.topicBuckets = new LinkedHashMap<String, TMQTTTokenBucket>(topicBuckets);
+        this.overflowPolicy = overflowPolicy;
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.maxSpilledMessages = maxSpilledMessages;
+        this.spillDirectory = spillDirectory;
+        this.queue = new ArrayDeque<TQueuedMessage>();
+        this.spillHead = 0;
+        this.spillTail = 0;
+        this.connected = false;
+        this.connectionCount = 0;
+        if (overflowPolicy == TMQTTOverflowPolicy.SPILL_TO_DISK) {
+            this.recoverSpilledMessages();
+        }
+    }
+
+    /**
+     * This method starts the worker thread that sends queued messages as soon as there are tokens
+     * available.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void start() {
+        if (this.worker != null) {
+            return;
+        }
+        this.running = true;
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TMQTTRateLimiter.this.drainQueue();
+            }
+        }, "TMQTTRateLimiter");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * This method stops the worker thread. If the overflow policy is SPILL_TO_DISK, messages
+     * queued in memory that have not been sent are spilled to disk ahead of the messages already
+     * spilled, so they are sent in order by the next instance. Otherwise, they are discarded.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void stop() {
+        Thread stoppedWorker;
+        synchronized (this) {
+            this.running = false;
+            stoppedWorker = this.worker;
+            this.worker = null;
+            this.notifyAll();
+        }
+        if (stoppedWorker != null) {
+            stoppedWorker.interrupt();
+            try {
+                stoppedWorker.join(RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.overflowPolicy == TMQTTOverflowPolicy.SPILL_TO_DISK) {
+            synchronized (this) {
+                this.spillQueue();
+            }
+        }
+    }
+
+    /**
+     * This method tells the rate limiter whether the connection to the remote MQTT broker is up.
+     * The worker thread waits for the connection to be up before sending queued messages. It is
+     * assumed to be down until this method says otherwise.
+     *
+     * @param connected TRUE, if the connection to the remote MQTT broker is up. FALSE, otherwise.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void setConnected(boolean connected) {
+        if (connected && !this.connected) {
+            this.connectionCount++;
+        }
+        this.connected = connected;
+        this.notifyAll();
+    }
+
+    /**
+     * This method submits a message to be published. Depending on the overflow policy, it is sent
+     * right now by the calling thread (waiting for tokens, if needed) or queued to be sent by the
+     * worker thread.
+     *
+     * @param topic    The topic the message will be published on.
+     * @param payload  The payload of the message.
+     * @param qos      The QoS the message will be published with (0, 1 or 2).
+     * @param retained TRUE, if the remote MQTT broker has to retain the message. FALSE, otherwise.
+     * @return boolean. TRUE, if the message has been sent or queued. FALSE, if it has been
+     * discarded (the calling thread was interrupted while waiting for tokens or the message could
+     * not be spilled to disk).
+     * @throws MqttException if the overflow policy is BLOCK and the message cannot be published.
+     * @throws IllegalArgumentException if the topic, the payload or the QoS are not valid.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public boolean submit(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        // An invalid message would be rejected by the MQTT client only when the worker thread
+        // sends it, so it is rejected here, where the caller can know it.
+        if ((topic == null) || (topic.length() == 0) || (topic.indexOf('+') >= 0) || (topic.indexOf('#') >= 0)) {
+            throw new IllegalArgumentException("Invalid topic to publish on: " + topic);
+        }
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload cannot be null");
+        }
+        if ((qos < 0) || (qos > 2)) {
+            throw new IllegalArgumentException("Invalid QoS " + qos + ". It must be 0, 1 or 2");
+        }
+        TQueuedMessage message = new TQueuedMessage(topic, payload, qos, retained);
+        if (this.overflowPolicy == TMQTTOverflowPolicy.BLOCK) {
+            long waitStart = System.nanoTime();
+            try {
+                this.acquireTokens(message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (this) {
+                    this.droppedCount++;
+                }
+                return false;
+            } finally {
+                synchronized (this) {
+                    this.blockedNanos += System.nanoTime() - waitStart;
+                }
+            }
+            try {
+                this.publisher.publish(message.topic, message.payload, message.qos, message.retained);
+            } catch (MqttException e) {
+                synchronized (this) {
+                    this.releaseTokens(message);
+                    this.failedCount++;
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    this.releaseTokens(message);
+                    this.failedCount++;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                this.publishedCount++;
+            }
+            return true;
+        }
+        synchronized (this) {
+            // Once a message has been spilled, every new message is spilled too, to keep the order.
+            if ((this.spillTail > this.spillHead) || (this.queue.size() >= this.maxQueuedMessages)) {
+                if (this.overflowPolicy == TMQTTOverflowPolicy.SPILL_TO_DISK) {
+                    if ((this.spillTail - this.spillHead) >= this.maxSpilledMessages) {
+                        // The disk limit has been reached. Discard the oldest spilled message.
+                        this.getSpillFile(this.spillHead).delete();
+                        this.spillHead++;
+                        this.droppedCount++;
+                    }
+                    try {
+                        this.spill(message);
+                    } catch (IOException e) {
+                        this.failedCount++;
+                        return false;
+                    }
+                } else {
+                    this.queue.pollFirst();
+                    this.droppedCount++;
+                    this.queue.addLast(message);
+                }
+            } else {
+                this.queue.addLast(message);
+            }
+            this.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * This method returns the current state of the rate limiter as a set of named metrics: the
+     * tokens available in each bucket, the number of messages waiting to be sent and the number of
+     * messages published, dropped, spilled and failed since this instance was created.
+     *
+     * @return Map. The value of each metric, indexed by metric name.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized Map<String, Number> getMetrics() {
+        LinkedHashMap<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("connection.tokens", Double.valueOf(this.connectionBucket.getAvailableTokens()));
+        for (Map.Entry<String, TMQTTTokenBucket> topicBucket : this.topicBuckets.entrySet()) {
+            metrics.put("topic." + topicBucket.getKey() + ".tokens", Double.valueOf(topicBucket.getValue().getAvailableTokens()));
+        }
+        metrics.put("queued", Long.valueOf(this.getQueuedCount()));
+        metrics.put("published", Long.valueOf(this.publishedCount));
+        metrics.put("dropped", Long.valueOf(this.droppedCount));
+        metrics.put("spilled", Long.valueOf(this.spilledCount));
+        metrics.put("failed", Long.valueOf(this.failedCount));
+        metrics.put("blockedMillis", Long.valueOf(this.blockedNanos / 1000000L));
+        return metrics;
+    }
+
+    /**
+     * This method returns the number of messages waiting to be sent, both in memory and spilled
+     * to disk.
+     *
+     * @return long. The number of messages waiting to be sent.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized long getQueuedCount() {
+        return this.queue.size() + (this.spillTail - this.spillHead);
+    }
+
+    private void acquireTokens(TQueuedMessage message) throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                waitNanos = this.nanosUntilAvailable(message);
+                if (waitNanos == 0) {
+                    this.consumeTokens(message);
+                    return;
+                }
+            }
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        }
+    }
+
+    private long nanosUntilAvailable(TQueuedMessage message) {
+        long waitNanos = this.connectionBucket.nanosUntilAvailable();
+        TMQTTTokenBucket topicBucket = this.findTopicBucket(message.topic);
+        if (topicBucket != null) {
+            waitNanos = Math.max(waitNanos, topicBucket.nanosUntilAvailable());
+        }
+        return waitNanos;
+    }
+
+    private void consumeTokens(TQueuedMessage message) {
+        this.connectionBucket.tryAcquire();
+        TMQTTTokenBucket topicBucket = this.findTopicBucket(message.topic);
+        if (topicBucket != null) {
+            topicBucket.tryAcquire();
+        }
+    }
+
+    private void releaseTokens(TQueuedMessage message) {
+        this.connectionBucket.release();
+        TMQTTTokenBucket topicBucket = this.findTopicBucket(message.topic);
+        if (topicBucket != null) {
+            topicBucket.release();
+        }
+    }
+
+    private TMQTTTokenBucket findTopicBucket(String topic) {
+        for (Map.Entry<String, TMQTTTokenBucket> topicBucket : this.topicBuckets.entrySet()) {
+            if (TMQTTTopicFilter.isMatched(topicBucket.getKey(), topic)) {
+                return topicBucket.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void drainQueue() {
+        while (true) {
+            TQueuedMessage message;
+            long publishConnectionCount;
+            synchronized (this) {
+                try {
+                    while (this.running && (!this.connected || (this.queue.isEmpty() && (this.spillTail == this.spillHead)))) {
+                        this.wait();
+                    }
+                    if (!this.running) {
+                        return;
+                    }
+                    if (this.queue.isEmpty()) {
+                        this.queue.addLast(this.unspill());
+                    }
+                    message = this.queue.peekFirst();
+                    long waitNanos = this.nanosUntilAvailable(message);
+                    if (waitNanos > 0) {
+                        this.wait(Math.max(1, waitNanos / 1000000L));
+                        continue;
+                    }
+                    this.consumeTokens(message);
+                    this.queue.pollFirst();
+                    publishConnectionCount = this.connectionCount;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // The spilled message cannot be read. It is skipped.
+                    this.failedCount++;
+                    continue;
+                }
+            }
+            try {
+                this.publisher.publish(message.topic, message.payload, message.qos, message.retained);
+                synchronized (this) {
+                    this.publishedCount++;
+                }
+                message.deleteSpillFile();
+            } catch (RuntimeException e) {
+                // Retrying would fail again. The message is discarded, but the worker thread must
+                // keep sending the next ones.
+                synchronized (this) {
+                    this.releaseTokens(message);
+                    this.failedCount++;
+                }
+                message.deleteSpillFile();
+            } catch (MqttException e) {
+                synchronized (this) {
+                    this.releaseTokens(message);
+                    if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED) {
+                        // The connection was lost before being notified. Wait for it to be
+                        // reestablished, unless that has already happened in the meantime.
+                        if (this.connectionCount == publishConnectionCount) {
+                            this.connected = false;
+                        }
+                        this.queue.addFirst(message);
+                        continue;
+                    }
+                    message.attempts++;
+                    if (message.attempts < MAX_PUBLISH_ATTEMPTS) {
+                        this.queue.addFirst(message);
+                    } else {
+                        this.failedCount++;
+                        message.deleteSpillFile();
+                    }
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void recoverSpilledMessages() {
+        this.spillDirectory.mkdirs();
+        File[] spillFiles = this.spillDirectory.listFiles();
+        if (spillFiles == null) {
+            return;
+        }
+        long first = Long.MAX_VALUE;
+        long last = -1;
+        for (File spillFile : spillFiles) {
+            String name = spillFile.getName();
+            if (name.endsWith(SPILL_FILE_SUFFIX)) {
+                try {
+                    long sequence = Long.parseLong(name.substring(0, name.length() - SPILL_FILE_SUFFIX.length()));
+                    first = Math.min(first, sequence);
+                    last = Math.max(last, sequence);
+                } catch (NumberFormatException e) {
+                    // Not a spill file. Ignored.
+                }
+            }
+        }
+        if (last >= 0) {
+            this.spillHead = first;
+            this.spillTail = last + 1;
+        }
+    }
+
+    private void spill(TQueuedMessage message) throws IOException {
+        this.writeSpillFile(message, this.getSpillFile(this.spillTail));
+        this.spillTail++;
+        this.spilledCount++;
+    }
+
+    private void spillQueue() {
+        // Messages read from disk are always at the head of the queue and keep their files, that
+        // are numbered before the spill head. The rest have to be written between those and the
+        // messages already spilled, so spilled files are renumbered to make room for them,
+        // starting from the last one to avoid overwriting any.
+        int unspilledCount = 0;
+        for (TQueuedMessage message : this.queue) {
+            if (message.spillFile == null) {
+                unspilledCount++;
+            }
+        }
+        if (unspilledCount == 0) {
+            this.queue.clear();
+            return;
+        }
+        for (long sequence = this.spillTail - 1; sequence >= this.spillHead; sequence--) {
+            this.getSpillFile(sequence).renameTo(this.getSpillFile(sequence + unspilledCount));
+        }
+        long sequence = this.spillHead;
+        this.spillTail += unspilledCount;
+        for (TQueuedMessage message : this.queue) {
+            if (message.spillFile == null) {
+                try {
+                    this.writeSpillFile(message, this.getSpillFile(sequence));
+                    this.spilledCount++;
+                } catch (IOException e) {
+                    // Without its file, the message is skipped and counted as failed when the
+                    // spilled messages are read again.
+                    this.getSpillFile(sequence).delete();
+                }
+                sequence++;
+            }
+        }
+        this.queue.clear();
+    }
+
+    private void writeSpillFile(TQueuedMessage message, File spillFile) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        try {
+            output.writeUTF(message.topic);
+            output.writeInt(message.qos);
+            output.writeBoolean(message.retained);
+            output.writeInt(message.payload.length);
+            output.write(message.payload);
+        } finally {
+            output.close();
+        }
+    }
+
+    private TQueuedMessage unspill() throws IOException {
+        File spillFile = this.getSpillFile(this.spillHead);
+        // The head is advanced even if the file cannot be read, so a corrupt file is not read again.
+        // The file itself is kept until the message is published, so it survives a restart.
+        this.spillHead++;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            String topic = input.readUTF();
+            int qos = input.readInt();
+            boolean retained = input.readBoolean();
+            byte[] payload = new byte[input.readInt()];
+            input.readFully(payload);
+            TQueuedMessage message = new TQueuedMessage(topic, payload, qos, retained);
+            message.spillFile = spillFile;
+            return message;
+        } catch (IOException e) {
+            spillFile.delete();
+            throw e;
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    private File getSpillFile(long sequence) {
+        return new File(this.spillDirectory, String.format(Locale.US, "%020d", Long.valueOf(sequence)) + SPILL_FILE_SUFFIX);
+    }
+
+    /**
+     * This interface has to be implemented by the object that actually sends the messages to the
+     * remote MQTT broker once TMQTTRateLimiter allows it.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @version 1.1
+     */
+    public interface TPublisher {
+
+        /**
+         * This method sends a message to the remote MQTT broker.
+         *
+         * @param topic    The topic the message will be published on.
+         * @param payload  The payload of the message.
+         * @param qos      The QoS the message will be published with (0, 1 or 2).
+         * @param retained TRUE, if the remote MQTT broker has to retain the message. FALSE,
+         *                 otherwise.
+         * @throws MqttException if the message cannot be published.
+         * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+         * @since 1.1
+         */
+        public void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException;
+    }
+
+    /**
+     * This class stores a message waiting to be sent and, if it was read from disk, the file it
+     * was spilled to.
+     */
+    private static class TQueuedMessage {
+        private String topic;
+        private byte[] payload;
+        private int qos;
+        private boolean retained;
+        private int attempts;
+        private File spillFile;
+
+        private TQueuedMessage(String topic, byte[] payload, int qos, boolean retained) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.attempts = 0;
+            this.spillFile = null;
+        }
+
+        private void deleteSpillFile() {
+            if (this.spillFile != null) {
+                this.spillFile.delete();
+                this.spillFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Random;
+
+/**
+ * This class implements the way TSelfSignedMQTTService connects to the remote MQTT broker: a
+ * background thread connects and subscribes to the configured topic, retrying with an exponential
+ * backoff until it succeeds or the reconnector is stopped. The delay is doubled after each failed
+ * attempt, up to the maximum, and a random part of up to a half of it is subtracted, so devices
+ * that lost the same broker do not retry all at the same time. It does not depend on Android, so
+ * the load generator simulates devices that reconnect exactly as the service does.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTReconnector {
+
+    private static final Random reconnectJitter = new Random();
+
+    private MqttClient tlsMQTTClient;
+    private MqttConnectOptions mqttConnectOptions;
+    private String subscribeTopic;
+    private long minReconnectDelayMillis;
+    private long maxReconnectDelayMillis;
+    private TListener listener;
+    // Guarded by the lock of the instance, so a connection lost while the connection thread is
+    // finishing either is seen by that thread or starts a new one.
+    private Thread connectionThread;
+    private boolean connecting;
+    private volatile boolean stopped;
+    private int retries;
+    private long connectingStartTime;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TMQTTReconnector that
+     * does not connect until start() is called.
+     *
+     * @param tlsMQTTClient      The MQTT client to be connected.
+     * @param mqttConnectOptions The options used to connect.
+     * @param mqttServiceConfig  The configuration that defines the topic to subscribe to (none, if
+     *                           it is NULL) and the minimum and maximum delays between attempts.
+     * @param listener           The object notified of each step of the connection.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTReconnector(MqttClient tlsMQTTClient, MqttConnectOptions mqttConnectOptions, TMQTTServiceConfig mqttServiceConfig, TListener listener) {
+        this.tlsMQTTClient = tlsMQTTClient;
+        this.mqttConnectOptions = mqttConnectOptions;
+        this.subscribeTopic = mqttServiceConfig.getSucribeTopic();
+        this.minReconnectDelayMillis = mqttServiceConfig.getMinReconnectDelayMillis();
+        this.maxReconnectDelayMillis = mqttServiceConfig.getMaxReconnectDelayMillis();
+        this.listener = listener;
+        this.connecting = false;
+        this.stopped = false;
+    }
+
+    /**
+     * This method starts a background thread that connects to the remote MQTT broker, unless it
+     * is already connecting or the reconnector has been stopped.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void start() {
+        if (this.stopped || this.connecting) {
+            return;
+        }
+        this.connecting = true;
+        this.retries = 0;
+        this.connectingStartTime = System.nanoTime();
+        this.connectionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TMQTTReconnector.this.connect();
+            }
+        }, "TMQTTReconnector");
+        this.connectionThread.setDaemon(true);
+        this.connectionThread.start();
+    }
+
+    /**
+     * This method has to be called when the connection to the remote MQTT broker has been lost.
+     * It notifies the listener and starts connecting again, unless the reconnector has been
+     * stopped.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void connectionLost() {
+        if (this.stopped) {
+            return;
+        }
+        this.listener.connectionLost();
+        this.start();
+    }
+
+    /**
+     * This method stops connecting. A connection established afterwards by an attempt in progress
+     * is closed right away. It does not close a connection already established.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void stop() {
+        this.stopped = true;
+        if (this.connectionThread != null) {
+            this.connectionThread.interrupt();
+        }
+    }
+
+    /**
+     * This method returns whether the reconnector has been stopped.
+     *
+     * @return boolean. TRUE, if the reconnector has been stopped. FALSE, otherwise.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
+    private void connect() {
+        long reconnectDelay = this.minReconnectDelayMillis;
+        while (!this.isConnectingFinished()) {
+            MqttException failure;
+            try {
+                this.listener.connecting();
+                this.tlsMQTTClient.connect(this.mqttConnectOptions);
+                if (this.subscribeTopic != null) {
+                    this.tlsMQTTClient.subscribe(this.subscribeTopic);
+                }
+                if (this.stopped) {
+                    this.tlsMQTTClient.disconnect();
+                    continue;
+                }
+                synchronized (this) {
+                    // Checked under the lock, so if the connection is lost right now,
+                    // connectionLost() runs after the listener has been notified and starts a
+                    // new connection thread.
+                    if (this.tlsMQTTClient.isConnected()) {
+                        this.listener.connected(this.retries, System.nanoTime() - this.connectingStartTime);
+                        this.connecting = false;
+                        return;
+                    }
+                }
+                failure = new MqttException(MqttException.REASON_CODE_CONNECTION_LOST);
+            } catch (MqttException e) {
+                failure = e;
+                if (this.tlsMQTTClient.isConnected()) {
+                    // Connected but not subscribed. Start again from scratch.
+                    try {
+                        this.tlsMQTTClient.disconnect();
+                    } catch (MqttException de) {
+                        de.printStackTrace();
+                    }
+                }
+            }
+            if (this.stopped) {
+                continue;
+            }
+            this.retries++;
+            long jitteredDelay = reconnectDelay - (long) (TMQTTReconnector.reconnectJitter.nextDouble() * (reconnectDelay / 2));
+            this.listener.connectFailed(failure, jitteredDelay);
+            try {
+                Thread.sleep(jitteredDelay);
+            } catch (InterruptedException e) {
+                // Only interrupted when the reconnector is stopped, which ends the loop.
+                continue;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, this.maxReconnectDelayMillis);
+        }
+    }
+
+    private synchronized boolean isConnectingFinished() {
+        // Instead of checking whether the thread is alive, start() checks the flag cleared here,
+        // so a connection lost after this check always starts a new connection thread.
+        if (this.stopped || this.tlsMQTTClient.isConnected()) {
+            this.connecting = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * This interface has to be implemented by the object that has to be notified of each step of
+     * the connection to the remote MQTT broker.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @version 1.1
+     */
+    public interface TListener {
+
+        /**
+         * This method is called, from the connection thread, before each connection attempt.
+         *
+         * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+         * @since 1.1
+         */
+        public void connecting();
+
+        /**
+         * This method is called, from the connection thread, when the client has connected and
+         * subscribed to the configured topic.
+         *
+         * @param retries         The number of failed attempts before this one.
+         * @param connectingNanos The time elapsed since the reconnector started connecting.
+         * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+         * @since 1.1
+         */
+        public void connected(int retries, long connectingNanos);
+
+        /**
+         * This method is called, from the connection thread, when a connection attempt has
+         * failed. The next attempt will be made after the given delay.
+         *
+         * @param e                The reason of the failure.
+         * @param retryDelayMillis The time until the next attempt.
+         * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+         * @since 1.1
+         */
+        public void connectFailed(MqttException e, long retryDelayMillis);
+
+        /**
+         * This method is called when the connection has been lost, right before connecting
+         * again.
+         *
+         * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+         * @since 1.1
+         */
+        public void connectionLost();
+    }
+}
@@ -22,6 +22,12 @@
 package com.manolodominguez.SelfSignedMQTTService;
 
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.SocketFactory;
 
 /**
  * This class stores the configuration of a TSelfSignedMQTTService that connect to a remote MQTT
@@ -35,18 +41,53 @@ public class TMQTTServiceConfig {
     private int timeOut;
     private int keepAliveInterval;
     private String sucribeTopic;
+    private long minReconnectDelayMillis;
+    private long maxReconnectDelayMillis;
+    private boolean deltaEncodingEnabled;
+    private int deltaKeyframeInterval;
+    private int deltaMaxTopics;
+    private long deltaMaxBaselineBytes;
+    private int lastValueCacheMaxTopics;
+    private long lastValueCacheMaxBytes;
+    private double connectionRateLimitCapacity;
+    private double connectionRateLimitRefillRate;
+    private LinkedHashMap<String, TMQTTTokenBucket> topicRateLimits;
+    private TMQTTOverflowPolicy overflowPolicy;
+    private int maxQueuedMessages;
+    private int maxSpilledMessages;
 
     public TMQTTServiceConfig() {
         this.clientID = MqttClient.generateClientId();
         this.timeOut = 60;
         this.keepAliveInterval = 60;
         this.sucribeTopic="lolete/hora";
+        // Delays between attempts to connect to the remote MQTT broker. See TMQTTReconnector.
+        this.minReconnectDelayMillis = 1000;
+        this.maxReconnectDelayMillis = 60000;
+        // When enabled, every subscribed topic must carry delta encoded payloads only. Plain
+        // payloads cannot be told apart from encoded ones.
+        this.deltaEncodingEnabled = false;
+        this.deltaKeyframeInterval = 20;
+        this.deltaMaxTopics = 64;
+        this.deltaMaxBaselineBytes = 256 * 1024;
+        this.lastValueCacheMaxTopics = 128;
+        this.lastValueCacheMaxBytes = 512 * 1024;
+        this.connectionRateLimitCapacity = 50;
+        this.connectionRateLimitRefillRate = 10;
+        this.topicRateLimits = new LinkedHashMap<String, TMQTTTokenBucket>();
+        this.overflowPolicy = TMQTTOverflowPolicy.DROP_OLDEST;
+        this.maxQueuedMessages = 1000;
+        this.maxSpilledMessages = 10000;
     }
 
     public String getClientID() {
         return clientID;
     }
 
+    public void setClientID(String clientID) {
+        this.clientID = clientID;
+    }
+
     public void generateClientID(String clientID) {
         if (this.clientID == null) {
             this.clientID = MqttClient.generateClientId();
@@ -76,4 +117,135 @@ public class TMQTTServiceConfig {
     public void setSucribeTopic(String sucribeTopic) {
         this.sucribeTopic = sucribeTopic;
     }
+
+    public boolean isDeltaEncodingEnabled() {
+        return this.deltaEncodingEnabled;
+    }
+
+    public void setDeltaEncodingEnabled(boolean deltaEncodingEnabled) {
+        this.deltaEncodingEnabled = deltaEncodingEnabled;
+    }
+
+    public int getDeltaKeyframeInterval() {
+        return this.deltaKeyframeInterval;
+    }
+
+    public void setDeltaKeyframeInterval(int deltaKeyframeInterval) {
+        this.deltaKeyframeInterval = deltaKeyframeInterval;
+    }
+
+    public int getDeltaMaxTopics() {
+        return this.deltaMaxTopics;
+    }
+
+    public void setDeltaMaxTopics(int deltaMaxTopics) {
+        this.deltaMaxTopics = deltaMaxTopics;
+    }
+
+    public long getDeltaMaxBaselineBytes() {
+        return this.deltaMaxBaselineBytes;
+    }
+
+    public void setDeltaMaxBaselineBytes(long deltaMaxBaselineBytes) {
+        this.deltaMaxBaselineBytes = deltaMaxBaselineBytes;
+    }
+
+    public int getLastValueCacheMaxTopics() {
+        return this.lastValueCacheMaxTopics;
+    }
+
+    public void setLastValueCacheMaxTopics(int lastValueCacheMaxTopics) {
+        this.lastValueCacheMaxTopics = lastValueCacheMaxTopics;
+    }
+
+    public long getLastValueCacheMaxBytes() {
+        return this.lastValueCacheMaxBytes;
+    }
+
+    public void setLastValueCacheMaxBytes(long lastValueCacheMaxBytes) {
+        this.lastValueCacheMaxBytes = lastValueCacheMaxBytes;
+    }
+
+    public double getConnectionRateLimitCapacity() {
+        return this.connectionRateLimitCapacity;
+    }
+
+    public void setConnectionRateLimitCapacity(double connectionRateLimitCapacity) {
+        this.connectionRateLimitCapacity = connectionRateLimitCapacity;
+    }
+
+    public double getConnectionRateLimitRefillRate() {
+        return this.connectionRateLimitRefillRate;
+    }
+
+    public void setConnectionRateLimitRefillRate(double connectionRateLimitRefillRate) {
+        this.connectionRateLimitRefillRate = connectionRateLimitRefillRate;
+    }
+
+    public Map<String, TMQTTTokenBucket> getTopicRateLimits() {
+        return this.topicRateLimits;
+    }
+
+    public void setTopicRateLimit(String topicFilter, double capacity, double refillRate) {
+        this.topicRateLimits.put(topicFilter, new TMQTTTokenBucket(capacity, refillRate));
+    }
+
+    public TMQTTOverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    public void setOverflowPolicy(TMQTTOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getMinReconnectDelayMillis() {
+        return this.minReconnectDelayMillis;
+    }
+
+    public void setMinReconnectDelayMillis(long minReconnectDelayMillis) {
+        this.minReconnectDelayMillis = minReconnectDelayMillis;
+    }
+
+    public long getMaxReconnectDelayMillis() {
+        return this.maxReconnectDelayMillis;
+    }
+
+    public void setMaxReconnectDelayMillis(long maxReconnectDelayMillis) {
+        this.maxReconnectDelayMillis = maxReconnectDelayMillis;
+    }
+
+    public int getMaxQueuedMessages() {
+        return this.maxQueuedMessages;
+    }
+
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    public int getMaxSpilledMessages() {
+        return this.maxSpilledMessages;
+    }
+
+    public void setMaxSpilledMessages(int maxSpilledMessages) {
+        this.maxSpilledMessages = maxSpilledMessages;
+    }
+
+    /**
+     * This method creates the options used to connect to the remote MQTT broker according to this
+     * configuration. It is shared by TSelfSignedMQTTService and the JVM load generator, so both
+     * connect exactly the same way.
+     *
+     * @param socketFactory The SocketFactory used to create the TLS connection to the remote MQTT
+     *                      broker.
+     * @return MqttConnectOptions. The options used to connect to the remote MQTT broker.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public MqttConnectOptions createMqttConnectOptions(SocketFactory socketFactory) {
+        MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
+        mqttConnectOptions.setConnectionTimeout(this.timeOut);
+        mqttConnectOptions.setKeepAliveInterval(this.keepAliveInterval);
+        mqttConnectOptions.setSocketFactory(socketFactory);
+        return mqttConnectOptions;
+    }
 }
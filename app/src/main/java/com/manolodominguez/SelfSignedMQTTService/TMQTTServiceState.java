@@ -0,0 +1,55 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+/**
+ * This enum defines the states of the lifecycle of a TSelfSignedMQTTService. The service goes
+ * from CREATING to CONNECTING when it is started, to CONNECTED once it is connected and subscribed
+ * to the remote MQTT broker, to RECONNECTING when the connection is lost or cannot be established,
+ * and to STOPPED when it is destroyed.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public enum TMQTTServiceState {
+    /**
+     * The service is being created by the system. It is not connected yet.
+     */
+    CREATING,
+    /**
+     * The service has been started and is connecting to the remote MQTT broker for the first time.
+     */
+    CONNECTING,
+    /**
+     * The service is connected to the remote MQTT broker and subscribed to the defined topics.
+     */
+    CONNECTED,
+    /**
+     * The connection to the remote MQTT broker has been lost or could not be established. The
+     * service keeps trying to connect.
+     */
+    RECONNECTING,
+    /**
+     * The service is not running.
+     */
+    STOPPED
+}
@@ -0,0 +1,146 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+/**
+ * This class implements a token bucket. The bucket holds up to a given number of tokens and is
+ * refilled continuously at a given rate. Each message published consumes one token, so the
+ * capacity defines the maximum burst allowed and the refill rate defines the sustained number of
+ * messages per second.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTTokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private double capacity;
+    private double refillRate;
+    private double tokens;
+    private long lastRefillTime;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TMQTTTokenBucket that is
+     * initially full.
+     *
+     * @param capacity   The maximum number of tokens the bucket can hold, that is, the maximum
+     *                   burst of messages allowed.
+     * @param refillRate The number of tokens added to the bucket each second, that is, the
+     *                   sustained number of messages per second allowed.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTTokenBucket(double capacity, double refillRate) {
+        if ((capacity < 1) || (refillRate <= 0)) {
+            throw new IllegalArgumentException("Capacity must be at least 1 and refill rate must be positive");
+        }
+        this.capacity = capacity;
+        this.refillRate = refillRate;
+        this.tokens = capacity;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * This method consumes a token, if there is any available.
+     *
+     * @return boolean. TRUE, if a token has been consumed. FALSE, if the bucket is empty.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized boolean tryAcquire() {
+        this.refill();
+        if (this.tokens >= 1) {
+            this.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * This method gives back a token previously consumed, i.e. because the message it was
+     * consumed for could not be published. The bucket never holds more tokens than its capacity.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void release() {
+        this.refill();
+        this.tokens = Math.min(this.capacity, this.tokens + 1);
+    }
+
+    /**
+     * This method returns the time that has to pass until a token is available.
+     *
+     * @return long. The number of nanoseconds until a token is available. Zero, if there is a
+     * token available right now.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized long nanosUntilAvailable() {
+        this.refill();
+        if (this.tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - this.tokens) * NANOS_PER_SECOND / this.refillRate);
+    }
+
+    /**
+     * This method returns the number of tokens currently available in the bucket.
+     *
+     * @return double. The number of tokens currently available in the bucket.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized double getAvailableTokens() {
+        this.refill();
+        return this.tokens;
+    }
+
+    /**
+     * This method returns the maximum number of tokens the bucket can hold.
+     *
+     * @return double. The maximum number of tokens the bucket can hold.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public double getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * This method returns the number of tokens added to the bucket each second.
+     *
+     * @return double. The number of tokens added to the bucket each second.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public double getRefillRate() {
+        return this.refillRate;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + ((now - this.lastRefillTime) * this.refillRate / NANOS_PER_SECOND));
+        this.lastRefillTime = now;
+    }
+}
@@ -23,18 +23,25 @@ package com.manolodominguez.SelfSignedMQTTService;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class implements a service that will be started and destroyed by an Activity and that will
@@ -47,11 +54,28 @@ import java.security.cert.CertificateException;
 public class TSelfSignedMQTTService extends Service {
 
     public static final String SERVICE_CLASSNAME = "com.manolodominguez.SelfSignedMQTTService.TSelfSignedMQTTService";
+    private static final String SPILL_DIRECTORY_NAME = "mqtt-spill";
+
+    // There is, at most, one instance of a given service running in the process, so the state is
+    // kept in the class, where it can be queried even if the service is not running.
+    private static volatile TMQTTServiceState serviceState = TMQTTServiceState.STOPPED;
+    private static final CopyOnWriteArrayList<TMQTTServiceStateListener> stateListeners = new CopyOnWriteArrayList<TMQTTServiceStateListener>();
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
 
     private TSelfSignedSSLSocketFactory selfSignedSSLSocketFactory;
     private MqttClient tlsMQTTClient;
     private MqttConnectOptions mqttConnectOptions;
     private TMQTTServiceConfig mqttServiceConfig;
+    private TMQTTDeltaCodec deltaCodec;
+    private TMQTTLastValueCache lastValueCache;
+    private TMQTTRateLimiter rateLimiter;
+    // Listeners can be unregistered while they are being notified, so a copy on write list is
+    // used. The lock serializes the replay of cached payloads with the dispatch of new ones.
+    private final CopyOnWriteArrayList<TListenerRegistration> messageListeners = new CopyOnWriteArrayList<TListenerRegistration>();
+    private final Object messageListenersLock = new Object();
+    private final IBinder binder = new TLocalBinder();
+    private TMQTTReconnector reconnector;
+    private boolean created = false;
 
     /**
      * This is the constructor of the class. It does nothing because the service is started by an
@@ -73,13 +97,14 @@ public class TSelfSignedMQTTService extends Service {
      * @param intent The intent created by the Activity that is binding this TSelfSignedMQTTService
      *               and used to transport information needed to bind the service correctly.
      * @return IBinder An object that will allow bidirectional communication between an Activity and
-     * this TSelfSignedMQTTService.
+     * this TSelfSignedMQTTService. It is a TLocalBinder whose getService() method returns this
+     * TSelfSignedMQTTService.
      * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
      * @since 1.0
      */
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return this.binder;
     }
 
     /**
@@ -131,10 +156,25 @@ public class TSelfSignedMQTTService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.CREATING);
         try {
             this.selfSignedSSLSocketFactory = new TSelfSignedSSLSocketFactory(this.getResources());
             Log.i("[TSelfSignedMQTTService]", "selfSignedSSLSocketFactory was created.");
             this.mqttServiceConfig = new TMQTTServiceConfig();
+            this.lastValueCache = new TMQTTLastValueCache(this.mqttServiceConfig.getLastValueCacheMaxTopics(), this.mqttServiceConfig.getLastValueCacheMaxBytes());
+            this.rateLimiter = new TMQTTRateLimiter(new TMQTTRateLimiter.TPublisher() {
+                @Override
+                public void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+                    TSelfSignedMQTTService.this.publishNow(topic, payload, qos, retained);
+                }
+            }, new TMQTTTokenBucket(this.mqttServiceConfig.getConnectionRateLimitCapacity(), this.mqttServiceConfig.getConnectionRateLimitRefillRate()), this.mqttServiceConfig.getTopicRateLimits(), this.mqttServiceConfig.getOverflowPolicy(), this.mqttServiceConfig.getMaxQueuedMessages(), this.mqttServiceConfig.getMaxSpilledMessages(), new File(this.getFilesDir(), SPILL_DIRECTORY_NAME));
+            this.rateLimiter.start();
+            Log.i("[TSelfSignedMQTTService]", "Rate limiter was started.");
+            if (this.mqttServiceConfig.isDeltaEncodingEnabled()) {
+                this.deltaCodec = new TMQTTDeltaCodec(this.mqttServiceConfig.getDeltaKeyframeInterval(), this.mqttServiceConfig.getDeltaMaxTopics(), this.mqttServiceConfig.getDeltaMaxBaselineBytes());
+                Log.i("[TSelfSignedMQTTService]", "Delta encoding of payloads is enabled.");
+            }
+            this.created = true;
             Log.i("[TSelfSignedMQTTService]", "Service was created.");
         } catch (CertificateException e) {
             e.printStackTrace();
@@ -147,6 +187,11 @@ public class TSelfSignedMQTTService extends Service {
         } catch (KeyManagementException e) {
             e.printStackTrace();
         }
+        if (!this.created) {
+            // The service cannot connect without the certificate, so it is not left as CREATING.
+            Log.e("[TSelfSignedMQTTService]", "Service cannot be created.");
+            TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.STOPPED);
+        }
     }
 
     /**
@@ -163,35 +208,332 @@ public class TSelfSignedMQTTService extends Service {
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        // The service can be started several times. Only the first time it has to connect, and
+        // only if it was created successfully.
+        if (this.created && (this.tlsMQTTClient == null)) {
+            try {
+                this.tlsMQTTClient = new MqttClient(this.selfSignedSSLSocketFactory.getAssociatedMQTTBrokerURL(), this.mqttServiceConfig.getClientID(), null);
+                this.tlsMQTTClient.setCallback(new TSelfSignedMQTTServiceCallback(this, this.deltaCodec));
+                this.mqttConnectOptions = this.mqttServiceConfig.createMqttConnectOptions(this.selfSignedSSLSocketFactory.getSelfSignedSSLSocketFactory());
+                // Connecting from the UI thread is not allowed by Android, so the reconnector
+                // connects from a background thread.
+                this.reconnector = new TMQTTReconnector(this.tlsMQTTClient, this.mqttConnectOptions, this.mqttServiceConfig, new TMQTTReconnector.TListener() {
+                    @Override
+                    public void connecting() {
+                        if (TSelfSignedMQTTService.this.deltaCodec != null) {
+                            // Messages could have been lost while disconnected, so baselines are
+                            // no longer reliable. Start again from keyframes.
+                            TSelfSignedMQTTService.this.deltaCodec.reset();
+                        }
+                        Log.i("[TSelfSignedMQTTService]", "Connecting to remote MQTT broker.");
+                    }
+
+                    @Override
+                    public void connected(int retries, long connectingNanos) {
+                        TSelfSignedMQTTService.this.rateLimiter.setConnected(true);
+                        TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.CONNECTED);
+                        Log.i("[TSelfSignedMQTTService]", "Connected and subscribed to remote MQTT broker after " + retries + " retries. Waiting for messages arrivals.");
+                    }
+
+                    @Override
+                    public void connectFailed(MqttException e, long retryDelayMillis) {
+                        Log.w("[TSelfSignedMQTTService]", "Cannot connect to remote MQTT broker. Retrying in " + retryDelayMillis + " ms.", e);
+                        TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.RECONNECTING);
+                    }
+
+                    @Override
+                    public void connectionLost() {
+                        // Queued messages wait for the connection to be reestablished.
+                        TSelfSignedMQTTService.this.rateLimiter.setConnected(false);
+                        TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.RECONNECTING);
+                    }
+                });
+                TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.CONNECTING);
+                this.reconnector.start();
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    /**
+     * This method returns the current state of the lifecycle of the TSelfSignedMQTTService. It
+     * can be called at any moment, even if the service is not running, and it does not need
+     * binding the service.
+     *
+     * @return TMQTTServiceState. The current state of the service.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public static TMQTTServiceState getServiceState() {
+        return TSelfSignedMQTTService.serviceState;
+    }
+
+    /**
+     * This method registers a listener that will be notified, from the UI thread, every time the
+     * state of the TSelfSignedMQTTService changes. It is notified with the current state right
+     * after being registered.
+     *
+     * @param listener The listener to be notified.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public static synchronized void addServiceStateListener(final TMQTTServiceStateListener listener) {
+        // Synchronized with changeServiceState(), so the current state is posted before any later
+        // change and the listener never ends up with a stale state.
+        TSelfSignedMQTTService.stateListeners.add(listener);
+        final TMQTTServiceState state = TSelfSignedMQTTService.serviceState;
+        TSelfSignedMQTTService.uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (TSelfSignedMQTTService.stateListeners.contains(listener)) {
+                    listener.serviceStateChanged(state);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method unregisters a listener previously registered via addServiceStateListener().
+     *
+     * @param listener The listener to be unregistered.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public static void removeServiceStateListener(TMQTTServiceStateListener listener) {
+        TSelfSignedMQTTService.stateListeners.remove(listener);
+    }
+
+    /**
+     * This method changes the state of the lifecycle of the TSelfSignedMQTTService and notifies
+     * the registered listeners. Once the service is STOPPED, only CREATING is accepted, so a
+     * connection attempt that finishes after the service has been destroyed cannot bring it back
+     * to life.
+     *
+     * @param state The new state of the service.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    private static synchronized void changeServiceState(final TMQTTServiceState state) {
+        TMQTTServiceState previousState = TSelfSignedMQTTService.serviceState;
+        if ((previousState == state) || ((previousState == TMQTTServiceState.STOPPED) && (state != TMQTTServiceState.CREATING))) {
+            return;
+        }
+        TSelfSignedMQTTService.serviceState = state;
+        Log.i("[TSelfSignedMQTTService]", "Service state changed from " + previousState + " to " + state + ".");
+        TSelfSignedMQTTService.uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (TMQTTServiceStateListener listener : TSelfSignedMQTTService.stateListeners) {
+                    listener.serviceStateChanged(state);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method is called by TSelfSignedMQTTServiceCallback when the connection to the remote
+     * MQTT broker has been lost. It starts trying to reconnect.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    void onConnectionLost() {
+        this.reconnector.connectionLost();
+    }
+
+    /**
+     * This method publishes a message to the remote MQTT broker. The message goes through the
+     * rate limiter configured in TMQTTServiceConfig, so depending on its overflow policy it can be
+     * sent right now, after waiting for tokens (BLOCK, never use it from the UI thread) or later,
+     * by the rate limiter worker thread (DROP_OLDEST and SPILL_TO_DISK).
+     *
+     * @param topic    The topic the message will be published on.
+     * @param payload  The payload of the message.
+     * @param qos      The QoS the message will be published with (0, 1 or 2).
+     * @param retained TRUE, if the remote MQTT broker has to retain the message. FALSE, otherwise.
+     * @return boolean. TRUE, if the message has been sent or queued. FALSE, if it has been
+     * discarded by the rate limiter.
+     * @throws MqttException if the message cannot be published right now (BLOCK policy only).
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public boolean publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        return this.rateLimiter.submit(topic, payload, qos, retained);
+    }
+
+    /**
+     * This method returns the rate limiter of the outbound messages, so that its metrics can be
+     * queried.
+     *
+     * @return TMQTTRateLimiter. The rate limiter of the outbound messages.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TMQTTRateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * This method sends a message to the remote MQTT broker once the rate limiter allows it. If
+     * delta encoding is enabled in TMQTTServiceConfig, the payload is sent as a delta against the
+     * last payload published on the same topic or as a keyframe, when needed. Encoding is done at
+     * this point, so messages discarded by the rate limiter never become part of a baseline.
+     * Retained messages are always sent as keyframes because they can be delivered to subscribers
+     * that have no baseline at all.
+     *
+     * @param topic    The topic the message will be published on.
+     * @param payload  The payload of the message.
+     * @param qos      The QoS the message will be published with (0, 1 or 2).
+     * @param retained TRUE, if the remote MQTT broker has to retain the message. FALSE, otherwise.
+     * @throws MqttException if the message cannot be published.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    private void publishNow(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        if ((this.tlsMQTTClient == null) || !this.tlsMQTTClient.isConnected()) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+        byte[] encodedPayload = payload;
+        if (this.deltaCodec != null) {
+            encodedPayload = this.deltaCodec.encode(topic, payload, retained);
+        }
+        MqttMessage mqttMessage = new MqttMessage(encodedPayload);
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(retained);
         try {
-            this.tlsMQTTClient = new MqttClient(this.selfSignedSSLSocketFactory.getAssociatedMQTTBrokerURL(), this.mqttServiceConfig.getClientID(), null);
-            this.tlsMQTTClient.setCallback(new TSelfSignedMQTTServiceCallback());
-            this.mqttConnectOptions = new MqttConnectOptions();
-            this.mqttConnectOptions.setConnectionTimeout(this.mqttServiceConfig.getTimeOut());
-            this.mqttConnectOptions.setKeepAliveInterval(this.mqttServiceConfig.getKeepAliveInterval());
-            this.mqttConnectOptions.setSocketFactory(this.selfSignedSSLSocketFactory.getSelfSignedSSLSocketFactory());
-            Log.i("[TSelfSignedMQTTService]", "Connecting to remote MQTT broker.");
-            this.tlsMQTTClient.connect(this.mqttConnectOptions);
-            Log.i("[TSelfSignedMQTTService]", "Connected to remote MQTT broker.");
-            this.tlsMQTTClient.subscribe(this.mqttServiceConfig.getSucribeTopic());
-            Log.i("[TSelfSignedMQTTService]", "Subscribed to defined topics.");
-            Log.i("[TSelfSignedMQTTService]", "Waiting for messages arrivals from remote MQTT broker.");
+            this.tlsMQTTClient.publish(topic, mqttMessage);
         } catch (MqttException e) {
-            e.printStackTrace();
+            if (this.deltaCodec != null) {
+                // Receivers will never get this payload, so it cannot be used as baseline.
+                this.deltaCodec.discardBaseline(topic);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method registers a listener that will be notified of every message received on topics
+     * matching a given topic filter. The last payload received on every topic matching the filter
+     * (if still cached) is delivered to the listener immediately, from the calling thread and
+     * before this method returns, so that it has data without waiting for the next publication.
+     * New messages are delivered later from the thread of the MQTT client.
+     *
+     * @param topicFilter The topic filter, i.e. "sensors/+/temperature" or "sensors/#". Only
+     *                    messages received on subscribed topics will be delivered.
+     * @param listener    The listener to be notified.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void addMessageListener(String topicFilter, TMQTTMessageListener listener) {
+        // Registration and replay are done while holding the lock used to dispatch new messages,
+        // so the listener never receives a cached payload after a newer one.
+        synchronized (this.messageListenersLock) {
+            this.messageListeners.add(new TListenerRegistration(topicFilter, listener));
+            for (Map.Entry<String, byte[]> lastValue : this.lastValueCache.getMatching(topicFilter).entrySet()) {
+                listener.messageArrived(lastValue.getKey(), lastValue.getValue());
+            }
+        }
+    }
+
+    /**
+     * This method unregisters a listener previously registered via addMessageListener(), for all
+     * the topic filters it was registered with.
+     *
+     * @param listener The listener to be unregistered.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void removeMessageListener(TMQTTMessageListener listener) {
+        for (TListenerRegistration registration : this.messageListeners) {
+            if (registration.listener == listener) {
+                this.messageListeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * This method is called by TSelfSignedMQTTServiceCallback when a message has been received and
+     * decoded. It updates the last value cache, that keeps its own copy of the payload, and
+     * notifies the listeners whose topic filter matches the topic of the message.
+     *
+     * @param topic   The topic at which the received message is associated.
+     * @param payload The payload of the received message, already decoded.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    void onMessageArrived(String topic, byte[] payload) {
+        synchronized (this.messageListenersLock) {
+            this.lastValueCache.put(topic, payload);
+            for (TListenerRegistration registration : this.messageListeners) {
+                if (TMQTTTopicFilter.isMatched(registration.topicFilter, topic)) {
+                    try {
+                        registration.listener.messageArrived(topic, payload);
+                    } catch (RuntimeException e) {
+                        // An exception thrown from here would make Paho drop the connection.
+                        Log.e("[TSelfSignedMQTTService]", "Message listener failed.", e);
+                    }
+                }
+            }
         }
-        return super.onStartCommand(intent, flags, startId);
     }
 
 
     @Override
     public void onDestroy() {
+        TSelfSignedMQTTService.changeServiceState(TMQTTServiceState.STOPPED);
+        if (this.reconnector != null) {
+            this.reconnector.stop();
+        }
+        if (this.rateLimiter != null) {
+            this.rateLimiter.stop();
+            Log.i("[TSelfSignedMQTTService]", "Rate limiter was stopped: " + this.rateLimiter.getMetrics());
+        }
         try {
-            Log.i("[TSelfSignedMQTTService]", "Closing connection to remote MQTT broker.");
-            tlsMQTTClient.disconnect();
-            Log.i("[TSelfSignedMQTTService]", "Connection to remote MQTT broker closed.");
+            if ((this.tlsMQTTClient != null) && this.tlsMQTTClient.isConnected()) {
+                Log.i("[TSelfSignedMQTTService]", "Closing connection to remote MQTT broker.");
+                this.tlsMQTTClient.disconnect();
+                Log.i("[TSelfSignedMQTTService]", "Connection to remote MQTT broker closed.");
+            }
         } catch (MqttException e) {
             e.printStackTrace();
         }
         super.onDestroy();
     }
+
+    /**
+     * This class implements the Binder returned to the Activities that bind this service. As the
+     * service always runs in the same process than the Activities, it just gives access to the
+     * TSelfSignedMQTTService instance.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @version 1.1
+     */
+    public class TLocalBinder extends Binder {
+
+        /**
+         * This method returns the TSelfSignedMQTTService instance that created this binder.
+         *
+         * @return TSelfSignedMQTTService. The service bound by the Activity.
+         * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+         * @since 1.1
+         */
+        public TSelfSignedMQTTService getService() {
+            return TSelfSignedMQTTService.this;
+        }
+    }
+
+    /**
+     * This class stores a registered TMQTTMessageListener together with its topic filter.
+     */
+    private static class TListenerRegistration {
+        private String topicFilter;
+        private TMQTTMessageListener listener;
+
+        private TListenerRegistration(String topicFilter, TMQTTMessageListener listener) {
+            this.topicFilter = topicFilter;
+            this.listener = listener;
+        }
+    }
 }
@@ -36,6 +36,25 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
  */
 public class TSelfSignedMQTTServiceCallback implements MqttCallback {
 
+    private TSelfSignedMQTTService service;
+    private TMQTTDeltaCodec deltaCodec;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of
+     * TSelfSignedMQTTServiceCallback.
+     *
+     * @param service    The TSelfSignedMQTTService whose MQTT connection this callback listens to.
+     *                   Received messages are handed to it.
+     * @param deltaCodec The codec used to decode delta encoded payloads of received messages or
+     *                   NULL, if delta encoding is not enabled.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TSelfSignedMQTTServiceCallback(TSelfSignedMQTTService service, TMQTTDeltaCodec deltaCodec) {
+        this.service = service;
+        this.deltaCodec = deltaCodec;
+    }
+
     /**
      * This method is called when the TSelfSignedMQTTService instance detects that the connection to
      * the remote MQTT broker has been lost.
@@ -47,6 +66,10 @@ public class TSelfSignedMQTTServiceCallback implements MqttCallback {
     @Override
     public void connectionLost(Throwable throwable) {
         Log.i("[TSelfSignedMQTTServiceCallback]", "Connection lost.");
+        if (this.deltaCodec != null) {
+            this.deltaCodec.reset();
+        }
+        this.service.onConnectionLost();
     }
 
     /**
@@ -60,7 +83,23 @@ public class TSelfSignedMQTTServiceCallback implements MqttCallback {
      */
     @Override
     public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-        Log.i("[TSelfSignedMQTTServiceCallback]", "Message arrived: " + mqttMessage.toString());
+        byte[] payload = mqttMessage.getPayload();
+        if (this.deltaCodec != null) {
+            try {
+                payload = this.deltaCodec.decode(s, payload);
+            } catch (IllegalArgumentException e) {
+                // Throwing from here would make Paho drop the connection. A plain payload received
+                // on a topic that is expected to carry encoded payloads is just discarded.
+                Log.w("[TSelfSignedMQTTServiceCallback]", "Malformed delta encoded message discarded on " + s, e);
+                return;
+            }
+            if (payload == null) {
+                Log.i("[TSelfSignedMQTTServiceCallback]", "Delta message discarded while waiting for a keyframe on " + s);
+                return;
+            }
+        }
+        Log.i("[TSelfSignedMQTTServiceCallback]", "Message arrived: " + new String(payload));
+        this.service.onMessageArrived(s, payload);
     }
 
     /**
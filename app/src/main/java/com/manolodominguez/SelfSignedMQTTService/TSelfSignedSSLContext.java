@@ -0,0 +1,104 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * This class creates a SSLContext that trusts the CA certificate of a self-signed MQTT broker
+ * certificate. It does not depend on Android at all, so it is used both by
+ * TSelfSignedSSLSocketFactory and by the JVM load generator.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TSelfSignedSSLContext {
+
+    private X509Certificate untrustedCACertificate;
+    private SSLContext sslContext;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TSelfSignedSSLContext
+     * and will do the necessary work to create a SSLContext that trusts the given CA certificate.
+     *
+     * @param caInput  An InputStream to read the X.509 certificate of the CA that signed the
+     *                 server certificate of the remote MQTT broker. It is not closed.
+     * @param protocol The protocol of the remote MQTT broker that is listening to TLS requests.
+     *                 It usually is "TLS", "TLSv1.1", etc.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TSelfSignedSSLContext(InputStream caInput, String protocol) throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+        // A X509 certificate is created from the CA certificate. It can be a created CA, a CA that
+        // usually are not reliable or a self-signed certificate.
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        this.untrustedCACertificate = (X509Certificate) certificateFactory.generateCertificate(caInput);
+        // Create a KeyStore containing the desired CA. This CA will be trusted, but at this moment
+        // it is not.
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setCertificateEntry("ca", this.untrustedCACertificate);
+        // Create a TrustManager that will trust the CA in our KeyStore. Hence, the CA that has
+        // signed the remote MQTT broker certificate will be reliable.
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        // Create an SSLContext that uses our TrustManager to generate SSLSocket to connect the
+        // remote MQTT broker through TLS.
+        this.sslContext = SSLContext.getInstance(protocol);
+        this.sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+    }
+
+    /**
+     * This method returns the certificate of the CA that is trusted by this SSLContext.
+     *
+     * @return X509Certificate. The certificate of the CA that is trusted by this SSLContext.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public X509Certificate getUntrustedCACertificate() {
+        return this.untrustedCACertificate;
+    }
+
+    /**
+     * This method returns the SocketFactory derived from the created SSLContext.
+     *
+     * @return SSLSocketFactory that will allow creating SSLSockets to connect to the MQTT broker
+     * whose server certificate has been signed using the CA certificate trusted in this class.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return this.sslContext.getSocketFactory();
+    }
+}
@@ -28,16 +28,11 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 /**
  * This class implements a SSL socket factory that uses a TrustManagerFactory to trust the CA
@@ -50,14 +45,8 @@ import javax.net.ssl.TrustManagerFactory;
 public class TSelfSignedSSLSocketFactory {
 
     private TMQTTBrokerConfig mqttBrokerConfig;
-    private CertificateFactory certificateFactory;
     private InputStream caInput;
-    private X509Certificate untrustedCACertificate;
-    private String keyStoreType;
-    private KeyStore keyStore;
-    private String trustManagerFactoryAlgorithm;
-    private TrustManagerFactory trustManagerFactory;
-    private SSLContext sslContext;
+    private TSelfSignedSSLContext sslContext;
 
     /**
      * This is the constructor of the class. It creates a new instance of
@@ -76,31 +65,15 @@ public class TSelfSignedSSLSocketFactory {
         // created CA, a CA that usually are not reliable or a self-signed certificate.
         // Certificate should be stored in the res/raw folder of your Android project and configured
         // in TMQTTBrokerConfig class.
-        this.certificateFactory = CertificateFactory.getInstance("X.509");
         this.caInput = new BufferedInputStream(appResources.openRawResource(this.mqttBrokerConfig.getBrokerCACertificateFileResourceID()));
-        // A X509 certificate is created from the information stored in the aforementioned file.
         Log.i("[TSelfSignedSSLSocketFactory]", "The untrusted CA certificate has been opened");
-        this.untrustedCACertificate = (X509Certificate) this.certificateFactory.generateCertificate(this.caInput);
-        Log.i("[TSelfSignedSSLSocketFactory]", "X509 certificate has been created from CA certificate file");
-        this.caInput.close();
-        // Create a KeyStore containing the desired CA. This CA will be trusted, but at this moment
-        // it is not.
-        this.keyStoreType = KeyStore.getDefaultType();
-        this.keyStore = KeyStore.getInstance(this.keyStoreType);
-        this.keyStore.load(null, null);
-        this.keyStore.setCertificateEntry("ca", this.untrustedCACertificate);
-        Log.i("[TSelfSignedSSLSocketFactory]", "Added the untrusted CA certificate to the keystore");
-        // Create a TrustManager that will trust the CA in our KeyStore. Hence, the CA that has
-        // signed the remote MQTT broker certificate will be reliable.
-        this.trustManagerFactoryAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
-        this.trustManagerFactory = TrustManagerFactory.getInstance(this.trustManagerFactoryAlgorithm);
-        this.trustManagerFactory.init(this.keyStore);
-        Log.i("[TSelfSignedSSLSocketFactory]", "Created the TrustManagerFactory that will trust the untrusted CA certificate");
-        // Create an SSLContext that uses our TrustManager to generate SSLSocket to connect the
-        // remote MQTT broker through TLS.
-        this.sslContext = SSLContext.getInstance(this.mqttBrokerConfig.getProtocol());
-        Log.i("[TSelfSignedSSLSocketFactory]", "Created a SSLContext.");
-        this.sslContext.init(null, this.trustManagerFactory.getTrustManagers(), null);
+        // The SSLContext that trusts the untrusted CA certificate is created by
+        // TSelfSignedSSLContext, that is shared with the JVM load generator.
+        try {
+            this.sslContext = new TSelfSignedSSLContext(this.caInput, this.mqttBrokerConfig.getProtocol());
+        } finally {
+            this.caInput.close();
+        }
         Log.i("[TSelfSignedSSLSocketFactory]", "Added the untrusted CA certificate to the SSLContext");
     }
 
@@ -22,15 +22,20 @@
 package com.manolodominguez.SelfSignedMQTTService.example;
 
 import android.app.Activity;
-import android.app.ActivityManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
 import com.manolodominguez.SelfSignedMQTTService.R;
+import com.manolodominguez.SelfSignedMQTTService.TMQTTMessageListener;
+import com.manolodominguez.SelfSignedMQTTService.TMQTTServiceState;
+import com.manolodominguez.SelfSignedMQTTService.TMQTTServiceStateListener;
 import com.manolodominguez.SelfSignedMQTTService.TSelfSignedMQTTService;
 
 
@@ -38,6 +43,35 @@ public class ExampleActivity extends Activity {
 
     TSelfSignedMQTTService mqttEnterpriseServiceBus;
 
+    private final TMQTTMessageListener messageListener = new TMQTTMessageListener() {
+        @Override
+        public void messageArrived(String topic, byte[] payload) {
+            Log.i("[ExampleActivity]", "Message received on " + topic + ": " + new String(payload));
+        }
+    };
+
+    private final TMQTTServiceStateListener serviceStateListener = new TMQTTServiceStateListener() {
+        @Override
+        public void serviceStateChanged(TMQTTServiceState state) {
+            Log.i("[ExampleActivity]", "Service state is " + state);
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            mqttEnterpriseServiceBus = ((TSelfSignedMQTTService.TLocalBinder) iBinder).getService();
+            // Last received values are delivered right now, without waiting for the broker.
+            mqttEnterpriseServiceBus.addMessageListener("#", messageListener);
+            Log.i("[ExampleActivity]", "Service bound");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mqttEnterpriseServiceBus = null;
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -49,13 +83,32 @@ public class ExampleActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        TSelfSignedMQTTService.addServiceStateListener(this.serviceStateListener);
+        this.bindService(new Intent(this, TSelfSignedMQTTService.class), this.serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        if (this.mqttEnterpriseServiceBus != null) {
+            this.mqttEnterpriseServiceBus.removeMessageListener(this.messageListener);
+            this.mqttEnterpriseServiceBus = null;
+        }
+        this.unbindService(this.serviceConnection);
+        TSelfSignedMQTTService.removeServiceStateListener(this.serviceStateListener);
+        super.onStop();
+    }
+
     private boolean serviceIsRunning() {
-        ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (TSelfSignedMQTTService.SERVICE_CLASSNAME.equals(service.service.getClassName())) {
-                Log.i("[ExampleActivity]", "Service is running");
-                return true;
-            }
+        // The service keeps track of its own state, so there is no need to scan every service
+        // running in the system. A service that is only CREATING has been created by binding it,
+        // but it has not been started, so it will not connect until startService() is called.
+        TMQTTServiceState serviceState = TSelfSignedMQTTService.getServiceState();
+        if ((serviceState == TMQTTServiceState.CONNECTING) || (serviceState == TMQTTServiceState.CONNECTED) || (serviceState == TMQTTServiceState.RECONNECTING)) {
+            Log.i("[ExampleActivity]", "Service is running");
+            return true;
         }
         Log.i("[ExampleActivity]", "Service is not running");
         return false;
@@ -0,0 +1,206 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService.loadgen;
+
+import com.manolodominguez.SelfSignedMQTTService.TSelfSignedSSLContext;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class implements a JVM load generator that simulates many devices running
+ * TSelfSignedMQTTService against a MQTT broker listening TLS with a self-signed certificate (by
+ * default, a TLocalTLSBroker stand-in started in the same JVM). Each round, all simulated clients
+ * connect at once (connect storm), then publishers publish periodically while subscribers receive
+ * messages for the configured duration, reporting throughput, latency and memory per client at
+ * regular intervals. Simulated clients retry and reconnect with the same backoff as the service. Running several rounds simulates repeated reconnect storms during a soak run.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TLoadGenerator {
+
+    private static final String USAGE = "Usage: TLoadGenerator [--clients 100] [--connect-threads <clients>] [--rounds 1]"
+            + " [--round-duration 60] [--report-interval 10] [--publish-ratio 0.5] [--subscribe-ratio 1.0]"
+            + " [--publish-interval 1000] [--payload-size 256] [--qos 0] [--subscribe-filter <next client topic>]"
+            + " [--min-reconnect-delay 1000] [--max-reconnect-delay 60000] [--connect-timeout 60]"
+            + " [--broker localhost] [--port 8883] [--protocol TLS] [--ca broker.crt]"
+            + " [--local-broker true] [--keystore broker.jks] [--keystore-password changeit]";
+
+    private TLoadGeneratorConfig config;
+    private TLoadGeneratorReport report;
+    private TSimulatedClient[] clients;
+    private ExecutorService connectPool;
+    private ScheduledExecutorService publishScheduler;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TLoadGenerator and the
+     * simulated clients, that are not connected yet.
+     *
+     * @param config        The configuration of the load generator run.
+     * @param socketFactory The SSLSocketFactory that trusts the self-signed broker certificate.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TLoadGenerator(TLoadGeneratorConfig config, SSLSocketFactory socketFactory) {
+        this.config = config;
+        this.report = new TLoadGeneratorReport(config.isLocalBroker());
+        this.clients = new TSimulatedClient[config.getClients()];
+        for (int i = 0; i < this.clients.length; i++) {
+            this.clients[i] = new TSimulatedClient(i, config, socketFactory, this.report);
+        }
+        this.connectPool = Executors.newFixedThreadPool(config.getConnectThreads());
+        this.publishScheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * This method runs every round of the load test and prints the report.
+     *
+     * @param baselineHeapBytes The heap memory used before creating the simulated clients. It is
+     *                          subtracted from the heap memory used during the run to compute the
+     *                          memory used per client. The local broker stand-in allocates its
+     *                          connections after this baseline, so they are counted too.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void run(long baselineHeapBytes) throws InterruptedException {
+        long runStart = System.nanoTime();
+        Random random = new Random();
+        for (int round = 1; round <= this.config.getRounds(); round++) {
+            this.report.printConnectStorm(round, this.clients.length, this.runOnAllClients(true, false));
+            ArrayList<ScheduledFuture<?>> publications = new ArrayList<ScheduledFuture<?>>();
+            for (final TSimulatedClient client : this.clients) {
+                if (client.isPublisher()) {
+                    // A random initial delay spreads publications along the publish interval.
+                    publications.add(this.publishScheduler.scheduleAtFixedRate(new Runnable() {
+                        @Override
+                        public void run() {
+                            client.publish();
+                        }
+                    }, random.nextInt(this.config.getPublishInterval()), this.config.getPublishInterval(), TimeUnit.MILLISECONDS));
+                }
+            }
+            long roundEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.config.getRoundDuration());
+            long intervalStart = System.nanoTime();
+            while (System.nanoTime() < roundEnd) {
+                long sleepNanos = Math.min(TimeUnit.SECONDS.toNanos(this.config.getReportInterval()), roundEnd - System.nanoTime());
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, sleepNanos));
+                long now = System.nanoTime();
+                this.report.printInterval(round, now - intervalStart, this.clients.length, Math.max(0, getUsedHeapBytes() - baselineHeapBytes));
+                intervalStart = now;
+            }
+            for (ScheduledFuture<?> publication : publications) {
+                publication.cancel(false);
+            }
+            this.runOnAllClients(false, round == this.config.getRounds());
+        }
+        this.connectPool.shutdown();
+        this.publishScheduler.shutdown();
+        this.report.printSummary(System.nanoTime() - runStart);
+    }
+
+    private long runOnAllClients(final boolean connect, final boolean close) throws InterruptedException {
+        // Every task waits for the start signal, so all clients hit the broker at the same time.
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(this.clients.length);
+        for (final TSimulatedClient client : this.clients) {
+            this.connectPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                        if (connect) {
+                            client.connect();
+                        } else {
+                            client.disconnect(close);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        doneSignal.countDown();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        return System.nanoTime() - start;
+    }
+
+    private static long getUsedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * This method is the entry point of the load generator.
+     *
+     * @param args The command line arguments. See USAGE.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public static void main(String[] args) throws Exception {
+        TLoadGeneratorConfig config;
+        try {
+            config = TLoadGeneratorConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        TLocalTLSBroker localBroker = null;
+        if (config.isLocalBroker()) {
+            localBroker = new TLocalTLSBroker(config.getBrokerPort(), config.getProtocol(), config.getLocalBrokerKeyStoreFile(), config.getLocalBrokerKeyStorePassword());
+            localBroker.start();
+            System.out.println("[TLoadGenerator] Local TLS broker stand-in listening at port " + config.getBrokerPort());
+        }
+        InputStream caInput = new BufferedInputStream(new FileInputStream(config.getCaCertificateFile()));
+        TSelfSignedSSLContext sslContext;
+        try {
+            sslContext = new TSelfSignedSSLContext(caInput, config.getProtocol());
+        } finally {
+            caInput.close();
+        }
+        long baselineHeapBytes = getUsedHeapBytes();
+        System.out.println("[TLoadGenerator] Simulating " + config.getClients() + " clients against " + config.getMQTTBrokerURL());
+        new TLoadGenerator(config, sslContext.getSocketFactory()).run(baselineHeapBytes);
+        if (localBroker != null) {
+            System.out.println("[TLoadGenerator] Local TLS broker stand-in received " + localBroker.getReceivedMessages()
+                    + " messages, delivered " + localBroker.getDeliveredMessages() + " and dropped " + localBroker.getDroppedMessages());
+            localBroker.stop();
+        }
+    }
+}
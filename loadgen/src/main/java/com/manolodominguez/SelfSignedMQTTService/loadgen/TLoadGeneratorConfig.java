@@ -0,0 +1,270 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService.loadgen;
+
+import com.manolodominguez.SelfSignedMQTTService.TMQTTServiceConfig;
+
+/**
+ * This class stores the configuration of a TLoadGenerator run. It is built from the command line
+ * arguments of the load generator.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TLoadGeneratorConfig {
+
+    private String brokerAddress;
+    private int brokerPort;
+    private String protocol;
+    private String caCertificateFile;
+    private boolean localBroker;
+    private String localBrokerKeyStoreFile;
+    private String localBrokerKeyStorePassword;
+    private int clients;
+    private int connectThreads;
+    private int rounds;
+    private int roundDuration;
+    private int reportInterval;
+    private double publishRatio;
+    private double subscribeRatio;
+    private int publishInterval;
+    private int payloadSize;
+    private int qos;
+    private String subscribeFilter;
+    private long minReconnectDelay;
+    private long maxReconnectDelay;
+    private int connectTimeout;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TLoadGeneratorConfig
+     * with default values: 100 clients connecting at once to a local broker stand-in listening at
+     * port 8883, every client subscribing and half of them publishing once per second, during a
+     * single round of 60 seconds. Clients retry connecting with the same delays as
+     * TSelfSignedMQTTService and give up connecting at the start of a round after 60 seconds.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TLoadGeneratorConfig() {
+        this.brokerAddress = "localhost";
+        this.brokerPort = 8883;
+        this.protocol = "TLS";
+        this.caCertificateFile = "broker.crt";
+        this.localBroker = true;
+        this.localBrokerKeyStoreFile = "broker.jks";
+        this.localBrokerKeyStorePassword = "changeit";
+        this.clients = 100;
+        this.connectThreads = 0;
+        this.rounds = 1;
+        this.roundDuration = 60;
+        this.reportInterval = 10;
+        this.publishRatio = 0.5;
+        this.subscribeRatio = 1.0;
+        this.publishInterval = 1000;
+        this.payloadSize = 256;
+        this.qos = 0;
+        this.subscribeFilter = null;
+        TMQTTServiceConfig mqttServiceConfig = new TMQTTServiceConfig();
+        this.minReconnectDelay = mqttServiceConfig.getMinReconnectDelayMillis();
+        this.maxReconnectDelay = mqttServiceConfig.getMaxReconnectDelayMillis();
+        this.connectTimeout = 60;
+    }
+
+    /**
+     * This method creates a new instance of TLoadGeneratorConfig from the command line arguments
+     * of the load generator. Every argument has the form --name value. Arguments not specified
+     * keep their default values.
+     *
+     * @param args The command line arguments.
+     * @return TLoadGeneratorConfig. The configuration of the run.
+     * @throws IllegalArgumentException if an argument is unknown or its value is not valid.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public static TLoadGeneratorConfig parse(String[] args) {
+        TLoadGeneratorConfig config = new TLoadGeneratorConfig();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of argument " + args[i]);
+            }
+            String name = args[i];
+            String value = args[i + 1];
+            try {
+                if (name.equals("--broker")) {
+                    config.brokerAddress = value;
+                } else if (name.equals("--port")) {
+                    config.brokerPort = Integer.parseInt(value);
+                } else if (name.equals("--protocol")) {
+                    config.protocol = value;
+                } else if (name.equals("--ca")) {
+                    config.caCertificateFile = value;
+                } else if (name.equals("--local-broker")) {
+                    config.localBroker = Boolean.parseBoolean(value);
+                } else if (name.equals("--keystore")) {
+                    config.localBrokerKeyStoreFile = value;
+                } else if (name.equals("--keystore-password")) {
+                    config.localBrokerKeyStorePassword = value;
+                } else if (name.equals("--clients")) {
+                    config.clients = Integer.parseInt(value);
+                } else if (name.equals("--connect-threads")) {
+                    config.connectThreads = Integer.parseInt(value);
+                } else if (name.equals("--rounds")) {
+                    config.rounds = Integer.parseInt(value);
+                } else if (name.equals("--round-duration")) {
+                    config.roundDuration = Integer.parseInt(value);
+                } else if (name.equals("--report-interval")) {
+                    config.reportInterval = Integer.parseInt(value);
+                } else if (name.equals("--publish-ratio")) {
+                    config.publishRatio = Double.parseDouble(value);
+                } else if (name.equals("--subscribe-ratio")) {
+                    config.subscribeRatio = Double.parseDouble(value);
+                } else if (name.equals("--publish-interval")) {
+                    config.publishInterval = Integer.parseInt(value);
+                } else if (name.equals("--payload-size")) {
+                    config.payloadSize = Integer.parseInt(value);
+                } else if (name.equals("--qos")) {
+                    config.qos = Integer.parseInt(value);
+                } else if (name.equals("--subscribe-filter")) {
+                    config.subscribeFilter = value;
+                } else if (name.equals("--min-reconnect-delay")) {
+                    config.minReconnectDelay = Long.parseLong(value);
+                } else if (name.equals("--max-reconnect-delay")) {
+                    config.maxReconnectDelay = Long.parseLong(value);
+                } else if (name.equals("--connect-timeout")) {
+                    config.connectTimeout = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of argument " + name + ": " + value);
+            }
+        }
+        if ((config.clients < 1) || (config.rounds < 1) || (config.roundDuration < 1) || (config.reportInterval < 1)
+                || (config.publishInterval < 1) || (config.payloadSize < 0) || (config.qos < 0) || (config.qos > 2)
+                || (config.publishRatio < 0) || (config.publishRatio > 1) || (config.subscribeRatio < 0) || (config.subscribeRatio > 1)
+                || (config.minReconnectDelay < 1) || (config.maxReconnectDelay < config.minReconnectDelay) || (config.connectTimeout < 1)) {
+            throw new IllegalArgumentException("Argument values out of range");
+        }
+        return config;
+    }
+
+    /**
+     * This method returns the complete URL to connect to the MQTT broker. It will have the
+     * following aspect: ssl://serveraddress:serverport, i.e. ssl://localhost:8883
+     *
+     * @return String. The URL to connect to the MQTT broker.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public String getMQTTBrokerURL() {
+        return "ssl://" + this.brokerAddress + ":" + Integer.toString(this.brokerPort);
+    }
+
+    public String getBrokerAddress() {
+        return this.brokerAddress;
+    }
+
+    public int getBrokerPort() {
+        return this.brokerPort;
+    }
+
+    public String getProtocol() {
+        return this.protocol;
+    }
+
+    public String getCaCertificateFile() {
+        return this.caCertificateFile;
+    }
+
+    public boolean isLocalBroker() {
+        return this.localBroker;
+    }
+
+    public String getLocalBrokerKeyStoreFile() {
+        return this.localBrokerKeyStoreFile;
+    }
+
+    public String getLocalBrokerKeyStorePassword() {
+        return this.localBrokerKeyStorePassword;
+    }
+
+    public int getClients() {
+        return this.clients;
+    }
+
+    public int getConnectThreads() {
+        // By default, every client connects from its own thread, so all of them hit the broker at
+        // once, like devices reconnecting after a network outage.
+        if (this.connectThreads < 1) {
+            return this.clients;
+        }
+        return this.connectThreads;
+    }
+
+    public int getRounds() {
+        return this.rounds;
+    }
+
+    public int getRoundDuration() {
+        return this.roundDuration;
+    }
+
+    public int getReportInterval() {
+        return this.reportInterval;
+    }
+
+    public double getPublishRatio() {
+        return this.publishRatio;
+    }
+
+    public double getSubscribeRatio() {
+        return this.subscribeRatio;
+    }
+
+    public int getPublishInterval() {
+        return this.publishInterval;
+    }
+
+    public int getPayloadSize() {
+        return this.payloadSize;
+    }
+
+    public int getQos() {
+        return this.qos;
+    }
+
+    public String getSubscribeFilter() {
+        return this.subscribeFilter;
+    }
+
+    public long getMinReconnectDelay() {
+        return this.minReconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return this.maxReconnectDelay;
+    }
+
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+}
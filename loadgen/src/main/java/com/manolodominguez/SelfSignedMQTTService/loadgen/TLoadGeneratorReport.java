@@ -0,0 +1,235 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService.loadgen;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * This class collects the measures taken by the simulated clients of a TLoadGenerator run and
+ * prints them: connect storm latency, publish and delivery throughput, end to end delivery latency
+ * and heap memory used per client. For each connect storm, it also reports the retries needed
+ * and the time taken, retries included, until clients are connected. Latencies are sampled in fixed size reservoirs, so memory used
+ * by the report does not grow during long soak runs.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TLoadGeneratorReport {
+
+    private static final int MAX_LATENCY_SAMPLES = 100000;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private TLatencySamples connectLatencies;
+    private TLatencySamples deliveryLatencies;
+    private long connectFailures;
+    private long connectRetries;
+    private int maxConnectRetries;
+    private long connectionsLost;
+    private long reconnections;
+    private long published;
+    private long publishFailures;
+    private long received;
+    private long lastPublished;
+    private long lastReceived;
+    private boolean heapIncludesLocalBroker;
+
+    /**
+     * This is the constructor of the class. It creates a new empty instance of
+     * TLoadGeneratorReport.
+     *
+     * @param heapIncludesLocalBroker TRUE, if the TLocalTLSBroker stand-in runs in the same JVM
+     *                                as the simulated clients, so the heap memory reported per
+     *                                client includes the memory used by the broker for each
+     *                                connection. FALSE, otherwise.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TLoadGeneratorReport(boolean heapIncludesLocalBroker) {
+        this.connectLatencies = new TLatencySamples();
+        this.deliveryLatencies = new TLatencySamples();
+        this.heapIncludesLocalBroker = heapIncludesLocalBroker;
+    }
+
+    /**
+     * This method records a simulated client connected during the connect storm of a round.
+     *
+     * @param latencyNanos The time elapsed since the client started connecting until it was
+     *                     connected and subscribed, including the delays between retries.
+     * @param retries      The number of failed attempts before the client was connected.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void recordConnect(long latencyNanos, int retries) {
+        this.connectLatencies.add(latencyNanos);
+        this.connectRetries += retries;
+        this.maxConnectRetries = Math.max(this.maxConnectRetries, retries);
+    }
+
+    public synchronized void recordReconnect() {
+        this.reconnections++;
+    }
+
+    /**
+     * This method records a simulated client that could not connect during the connect storm of
+     * a round.
+     *
+     * @param retries The number of failed attempts before giving up.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void recordConnectFailure(int retries) {
+        this.connectFailures++;
+        this.connectRetries += retries;
+        this.maxConnectRetries = Math.max(this.maxConnectRetries, retries);
+    }
+
+    public synchronized void recordConnectionLost() {
+        this.connectionsLost++;
+    }
+
+    public synchronized void recordPublished() {
+        this.published++;
+    }
+
+    public synchronized void recordPublishFailure() {
+        this.publishFailures++;
+    }
+
+    /**
+     * This method records a message received by a simulated client.
+     *
+     * @param latencyNanos The time elapsed since the message was published or a negative value,
+     *                     if it is unknown (i.e. the payload is too short to carry a timestamp).
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void recordReceived(long latencyNanos) {
+        this.received++;
+        if (latencyNanos >= 0) {
+            this.deliveryLatencies.add(latencyNanos);
+        }
+    }
+
+    /**
+     * This method prints the result of the connect storm of a round and starts measuring the
+     * connections of the next one.
+     *
+     * @param round      The number of the round, starting at 1.
+     * @param clients    The number of simulated clients.
+     * @param stormNanos The time elapsed since all clients started connecting until the last one
+     *                   was connected or gave up.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void printConnectStorm(int round, int clients, long stormNanos) {
+        System.out.println(String.format(Locale.US,
+                "[round %d] connect storm: %d/%d connected, %d failed in %.1f ms (%.1f connects/s), %d retries (max %d per client) | time to connected ms p50=%.1f p95=%.1f p99=%.1f max=%.1f",
+                round, this.connectLatencies.count, clients, this.connectFailures, stormNanos / NANOS_PER_MILLI,
+                this.connectLatencies.count * 1000.0 * NANOS_PER_MILLI / Math.max(1, stormNanos), this.connectRetries, this.maxConnectRetries,
+                this.connectLatencies.percentile(50) / NANOS_PER_MILLI, this.connectLatencies.percentile(95) / NANOS_PER_MILLI,
+                this.connectLatencies.percentile(99) / NANOS_PER_MILLI, this.connectLatencies.max / NANOS_PER_MILLI));
+        this.connectLatencies = new TLatencySamples();
+        this.connectFailures = 0;
+        this.connectRetries = 0;
+        this.maxConnectRetries = 0;
+    }
+
+    /**
+     * This method prints the throughput and delivery latency measured since the previous interval
+     * and the heap memory used per client, and starts measuring the next interval.
+     *
+     * @param round         The number of the round, starting at 1.
+     * @param intervalNanos The time elapsed since the previous interval.
+     * @param clients       The number of simulated clients.
+     * @param heapBytes     The heap memory used by the simulated clients (and by the local
+     *                      broker stand-in, if it runs in the same JVM), after a garbage
+     *                      collection.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void printInterval(int round, long intervalNanos, int clients, long heapBytes) {
+        double seconds = intervalNanos / (1000.0 * NANOS_PER_MILLI);
+        System.out.println(String.format(Locale.US,
+                "[round %d] publish %.1f msg/s (%d failed), deliver %.1f msg/s, %d connections lost, %d reconnected | delivery ms p50=%.1f p99=%.1f max=%.1f | heap %.1f MB, %.1f KB/client%s, %d threads",
+                round, (this.published - this.lastPublished) / seconds, this.publishFailures,
+                (this.received - this.lastReceived) / seconds, this.connectionsLost, this.reconnections,
+                this.deliveryLatencies.percentile(50) / NANOS_PER_MILLI, this.deliveryLatencies.percentile(99) / NANOS_PER_MILLI,
+                this.deliveryLatencies.max / NANOS_PER_MILLI, heapBytes / (1024.0 * 1024.0), heapBytes / (1024.0 * clients),
+                this.heapIncludesLocalBroker ? " (includes local broker)" : "", Thread.activeCount()));
+        this.lastPublished = this.published;
+        this.lastReceived = this.received;
+        this.deliveryLatencies = new TLatencySamples();
+    }
+
+    /**
+     * This method prints the totals of the whole run.
+     *
+     * @param elapsedNanos The duration of the whole run.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public synchronized void printSummary(long elapsedNanos) {
+        System.out.println(String.format(Locale.US,
+                "[summary] %.1f s, %d published (%d failed), %d delivered, %d connections lost, %d reconnected",
+                elapsedNanos / (1000.0 * NANOS_PER_MILLI), this.published, this.publishFailures, this.received, this.connectionsLost,
+                this.reconnections));
+    }
+
+    /**
+     * This class keeps a uniform random sample of the latencies measured (reservoir sampling),
+     * together with the exact count and maximum.
+     */
+    private static class TLatencySamples {
+        private long[] samples = new long[1024];
+        private int size = 0;
+        private long count = 0;
+        private long max = 0;
+        private Random random = new Random();
+
+        private void add(long latencyNanos) {
+            this.count++;
+            this.max = Math.max(this.max, latencyNanos);
+            if (this.size < MAX_LATENCY_SAMPLES) {
+                if (this.size == this.samples.length) {
+                    this.samples = Arrays.copyOf(this.samples, this.samples.length * 2);
+                }
+                this.samples[this.size++] = latencyNanos;
+            } else {
+                long slot = (long) (this.random.nextDouble() * this.count);
+                if (slot < MAX_LATENCY_SAMPLES) {
+                    this.samples[(int) slot] = latencyNanos;
+                }
+            }
+        }
+
+        private long percentile(int percentile) {
+            if (this.size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(this.samples, this.size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(this.size - 1, (int) Math.ceil(percentile / 100.0 * this.size) - 1)];
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService.loadgen;
+
+import com.manolodominguez.SelfSignedMQTTService.TMQTTTopicFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * This class implements a minimal MQTT 3.1 broker listening TLS with a self-signed server
+ * certificate. It is a stand-in for the real broker that allows load testing without a public
+ * broker. It supports CONNECT, SUBSCRIBE, UNSUBSCRIBE, PUBLISH (QoS 0, 1 and 2 towards the
+ * broker), retained messages, PINGREQ and DISCONNECT. Messages are always delivered to
+ * subscribers with QoS 0. There is no authentication, no session persistence and no will.
+ *
+ * Each connection has a reader thread and a writer thread with its own queue of outgoing packets,
+ * so routing a message only queues it for every subscriber and a slow subscriber does not delay
+ * the publishers. Messages for a subscriber whose queue is full are dropped, as any QoS 0
+ * delivery could be.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TLocalTLSBroker {
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int UNSUBACK = 11;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private static final int MAX_QUEUED_PACKETS = 10000;
+
+    private SSLServerSocket serverSocket;
+    private Thread acceptor;
+    private volatile boolean running;
+    private Set<TBrokerConnection> connections;
+    private ConcurrentHashMap<String, byte[]> retainedMessages;
+    private AtomicLong receivedMessages;
+    private AtomicLong deliveredMessages;
+    private AtomicLong droppedMessages;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TLocalTLSBroker that
+     * will use the private key and the certificate stored in a Java key store.
+     *
+     * @param port             The port the broker will listen TLS requests at.
+     * @param protocol         The TLS protocol, i.e. "TLS", "TLSv1.1", etc.
+     * @param keyStoreFile     The JKS key store that contains the private key and the self-signed
+     *                         certificate of the broker.
+     * @param keyStorePassword The password of the key store and of the private key.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TLocalTLSBroker(int port, String protocol, String keyStoreFile, String keyStorePassword) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream keyStoreInput = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(keyStoreInput, keyStorePassword.toCharArray());
+        } finally {
+            keyStoreInput.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance(protocol);
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        // A big backlog, so a connect storm is not limited by the listen queue of the socket.
+        this.serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port, 4096);
+        this.connections = new CopyOnWriteArraySet<TBrokerConnection>();
+        this.retainedMessages = new ConcurrentHashMap<String, byte[]>();
+        this.receivedMessages = new AtomicLong();
+        this.deliveredMessages = new AtomicLong();
+        this.droppedMessages = new AtomicLong();
+    }
+
+    /**
+     * This method starts accepting connections from a background thread.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void start() {
+        this.running = true;
+        this.acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TLocalTLSBroker.this.acceptConnections();
+            }
+        }, "TLocalTLSBroker-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * This method stops accepting connections and closes every open connection.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void stop() {
+        this.running = false;
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            // Nothing to do. The broker is being stopped.
+        }
+        for (TBrokerConnection connection : this.connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * This method returns the number of connections currently open.
+     *
+     * @return int. The number of connections currently open.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    /**
+     * This method returns the number of PUBLISH packets received from clients since the broker was
+     * created.
+     *
+     * @return long. The number of PUBLISH packets received from clients.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public long getReceivedMessages() {
+        return this.receivedMessages.get();
+    }
+
+    /**
+     * This method returns the number of PUBLISH packets queued for delivery to subscribers since
+     * the broker was created.
+     *
+     * @return long. The number of PUBLISH packets queued for delivery to subscribers.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public long getDeliveredMessages() {
+        return this.deliveredMessages.get();
+    }
+
+    /**
+     * This method returns the number of PUBLISH packets not delivered to subscribers since the
+     * broker was created, because their queue of outgoing packets was full.
+     *
+     * @return long. The number of PUBLISH packets dropped.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public long getDroppedMessages() {
+        return this.droppedMessages.get();
+    }
+
+    private void acceptConnections() {
+        while (this.running) {
+            try {
+                TBrokerConnection connection = new TBrokerConnection(this.serverSocket.accept());
+                this.connections.add(connection);
+                connection.start();
+            } catch (IOException e) {
+                if (this.running) {
+                    System.err.println("[TLocalTLSBroker] Error accepting a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void route(String topic, byte[] payload) {
+        this.receivedMessages.incrementAndGet();
+        byte[] packet = null;
+        for (TBrokerConnection connection : this.connections) {
+            if (connection.isSubscribed(topic)) {
+                if (packet == null) {
+                    packet = encodePublish(topic, payload, false);
+                }
+                if (connection.deliver(packet)) {
+                    this.deliveredMessages.incrementAndGet();
+                } else {
+                    this.droppedMessages.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static byte[] encodePublish(String topic, byte[] payload, boolean retained) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + topic.length() + 2);
+        writeString(body, topic);
+        body.write(payload, 0, payload.length);
+        return encodePacket((PUBLISH << 4) | (retained ? 0x01 : 0x00), body.toByteArray());
+    }
+
+    private static byte[] encodePacket(int header, byte[] body) {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(body.length + 5);
+        packet.write(header);
+        int remainingLength = body.length;
+        do {
+            int digit = remainingLength % 128;
+            remainingLength /= 128;
+            if (remainingLength > 0) {
+                digit |= 0x80;
+            }
+            packet.write(digit);
+        } while (remainingLength > 0);
+        packet.write(body, 0, body.length);
+        return packet.toByteArray();
+    }
+
+    private static byte[] encodeMessageId(int messageId) {
+        return new byte[]{(byte) (messageId >> 8), (byte) messageId};
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        out.write(bytes.length >> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * This class handles a connection from a MQTT client to the broker. Packets are read by a
+     * reader thread and written by a writer thread from a queue.
+     */
+    private class TBrokerConnection {
+        private Socket socket;
+        private OutputStream output;
+        private Set<String> subscriptions;
+        private LinkedBlockingQueue<byte[]> outgoingPackets;
+        private Thread writer;
+        private volatile boolean closed;
+
+        private TBrokerConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.socket.setTcpNoDelay(true);
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+            this.subscriptions = new CopyOnWriteArraySet<String>();
+            this.outgoingPackets = new LinkedBlockingQueue<byte[]>(MAX_QUEUED_PACKETS);
+            this.closed = false;
+        }
+
+        private void start() {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TBrokerConnection.this.serve();
+                }
+            }, "TLocalTLSBroker-reader");
+            reader.setDaemon(true);
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TBrokerConnection.this.writeQueuedPackets();
+                }
+            }, "TLocalTLSBroker-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+            reader.start();
+        }
+
+        private void serve() {
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                while (true) {
+                    int header = input.read();
+                    if (header < 0) {
+                        return;
+                    }
+                    int remainingLength = 0;
+                    int multiplier = 1;
+                    int digit;
+                    do {
+                        digit = input.readUnsignedByte();
+                        remainingLength += (digit & 0x7F) * multiplier;
+                        multiplier *= 128;
+                    } while ((digit & 0x80) != 0);
+                    byte[] body = new byte[remainingLength];
+                    input.readFully(body);
+                    if (!this.handle(header, body)) {
+                        return;
+                    }
+                }
+            } catch (EOFException e) {
+                // The client closed the connection.
+            } catch (SocketException e) {
+                // The connection was closed or reset.
+            } catch (IOException e) {
+                System.err.println("[TLocalTLSBroker] Error reading from a connection: " + e.getMessage());
+            } finally {
+                this.close();
+            }
+        }
+
+        private boolean handle(int header, byte[] body) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            switch (header >> 4) {
+                case CONNECT:
+                    this.write(encodePacket(CONNACK << 4, new byte[]{0, 0}));
+                    return true;
+                case PUBLISH: {
+                    int qos = (header >> 1) & 0x03;
+                    boolean retain = (header & 0x01) != 0;
+                    String topic = readString(in);
+                    int messageId = (qos > 0) ? in.readUnsignedShort() : 0;
+                    byte[] payload = new byte[in.available()];
+                    in.readFully(payload);
+                    if (qos == 1) {
+                        this.write(encodePacket(PUBACK << 4, encodeMessageId(messageId)));
+                    } else if (qos == 2) {
+                        this.write(encodePacket(PUBREC << 4, encodeMessageId(messageId)));
+                    }
+                    if (retain) {
+                        if (payload.length == 0) {
+                            TLocalTLSBroker.this.retainedMessages.remove(topic);
+                        } else {
+                            TLocalTLSBroker.this.retainedMessages.put(topic, payload);
+                        }
+                    }
+                    TLocalTLSBroker.this.route(topic, payload);
+                    return true;
+                }
+                case PUBREL:
+                    this.write(encodePacket(PUBCOMP << 4, encodeMessageId(in.readUnsignedShort())));
+                    return true;
+                case SUBSCRIBE: {
+                    int messageId = in.readUnsignedShort();
+                    ByteArrayOutputStream grantedQoS = new ByteArrayOutputStream();
+                    grantedQoS.write(messageId >> 8);
+                    grantedQoS.write(messageId);
+                    while (in.available() > 0) {
+                        String topicFilter = readString(in);
+                        in.readUnsignedByte();
+                        this.subscriptions.add(topicFilter);
+                        grantedQoS.write(0);
+                    }
+                    this.write(encodePacket(SUBACK << 4, grantedQoS.toByteArray()));
+                    for (Map.Entry<String, byte[]> retained : TLocalTLSBroker.this.retainedMessages.entrySet()) {
+                        if (this.isSubscribed(retained.getKey())) {
+                            this.write(encodePublish(retained.getKey(), retained.getValue(), true));
+                        }
+                    }
+                    return true;
+                }
+                case UNSUBSCRIBE: {
+                    int messageId = in.readUnsignedShort();
+                    while (in.available() > 0) {
+                        this.subscriptions.remove(readString(in));
+                    }
+                    this.write(encodePacket(UNSUBACK << 4, encodeMessageId(messageId)));
+                    return true;
+                }
+                case PINGREQ:
+                    this.write(encodePacket(PINGRESP << 4, new byte[0]));
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    // PUBACK, PUBREC and PUBCOMP are never expected because messages are delivered
+                    // with QoS 0. Anything else is ignored.
+                    return true;
+            }
+        }
+
+        private boolean isSubscribed(String topic) {
+            for (String topicFilter : this.subscriptions) {
+                if (TMQTTTopicFilter.isMatched(topicFilter, topic)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void write(byte[] packet) throws IOException {
+            // A response to this client waits for room in the queue, so a client that does not
+            // read its responses only slows down itself.
+            try {
+                this.outgoingPackets.put(packet);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while queueing a packet");
+            }
+        }
+
+        private boolean deliver(byte[] packet) {
+            // A message routed from another client never waits, so the publisher is not delayed
+            // by this subscriber.
+            return !this.closed && this.outgoingPackets.offer(packet);
+        }
+
+        private void writeQueuedPackets() {
+            try {
+                while (!this.closed) {
+                    this.output.write(this.outgoingPackets.take());
+                    // Packets queued in the meantime are written before flushing, so a busy
+                    // connection is flushed once per batch instead of once per packet.
+                    if (this.outgoingPackets.isEmpty()) {
+                        this.output.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The connection is being closed.
+            } catch (IOException e) {
+                // The connection was closed or reset.
+            } finally {
+                this.close();
+            }
+        }
+
+        private void close() {
+            this.closed = true;
+            TLocalTLSBroker.this.connections.remove(this);
+            // A reader waiting for room in the queue must not wait forever.
+            this.outgoingPackets.clear();
+            if ((this.writer != null) && (this.writer != Thread.currentThread())) {
+                this.writer.interrupt();
+            }
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Nothing to do. The connection is being closed.
+            }
+        }
+    }
+}
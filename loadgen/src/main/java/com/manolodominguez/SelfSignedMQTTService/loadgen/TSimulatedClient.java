@@ -0,0 +1,244 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService.loadgen;
+
+import com.manolodominguez.SelfSignedMQTTService.TMQTTReconnector;
+import com.manolodominguez.SelfSignedMQTTService.TMQTTServiceConfig;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class simulates a device running TSelfSignedMQTTService. It connects to the MQTT broker
+ * using the same TMQTTServiceConfig and the same TMQTTReconnector as the service, so it retries
+ * and reconnects after a connection lost with the same backoff, and publishes messages whose payload starts with the publication time, so that subscribers can
+ * measure the end to end delivery latency (publishers and subscribers run in the same JVM).
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TSimulatedClient implements MqttCallback {
+
+    private static final int TIMESTAMP_SIZE = 8;
+
+    private String brokerURL;
+    private TMQTTServiceConfig mqttServiceConfig;
+    private MqttConnectOptions mqttConnectOptions;
+    private MqttClient tlsMQTTClient;
+    // Written by the connect pool and read by the MQTT client thread when the connection is lost.
+    private volatile TMQTTReconnector reconnector;
+    private long connectTimeoutMillis;
+    private TLoadGeneratorReport report;
+    private boolean publisher;
+    private boolean subscriber;
+    private String publishTopic;
+    private byte[] payload;
+    private int qos;
+
+    /**
+     * This is the constructor of the class. It creates a new instance of TSimulatedClient. Its
+     * role (publisher, subscriber or both) is derived from its index and the publish and
+     * subscribe ratios of the configuration, so that roles are evenly spread among clients.
+     *
+     * @param index         The index of the client, from 0 to the number of clients - 1.
+     * @param config        The configuration of the load generator run.
+     * @param socketFactory The SSLSocketFactory that trusts the self-signed broker certificate.
+     * @param report        The report where measures are recorded.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public TSimulatedClient(int index, TLoadGeneratorConfig config, SSLSocketFactory socketFactory, TLoadGeneratorReport report) {
+        this.brokerURL = config.getMQTTBrokerURL();
+        this.report = report;
+        this.publisher = Math.floor((index + 1) * config.getPublishRatio()) > Math.floor(index * config.getPublishRatio());
+        this.subscriber = Math.floor((index + 1) * config.getSubscribeRatio()) > Math.floor(index * config.getSubscribeRatio());
+        this.publishTopic = "loadgen/" + index + "/state";
+        this.qos = config.getQos();
+        this.payload = new byte[config.getPayloadSize()];
+        new Random(index).nextBytes(this.payload);
+        // Client IDs generated by MqttClient are based on System.nanoTime() and can collide when
+        // thousands of them are created at once.
+        this.mqttServiceConfig = new TMQTTServiceConfig();
+        this.mqttServiceConfig.setClientID("loadgen-" + index);
+        // By default, each client subscribes to the topic published by the next one, so the number
+        // of deliveries grows linearly with the number of clients.
+        if (config.getSubscribeFilter() != null) {
+            this.mqttServiceConfig.setSucribeTopic(config.getSubscribeFilter());
+        } else {
+            this.mqttServiceConfig.setSucribeTopic("loadgen/" + ((index + 1) % config.getClients()) + "/state");
+        }
+        if (!this.subscriber) {
+            // TMQTTReconnector does not subscribe when there is no topic.
+            this.mqttServiceConfig.setSucribeTopic(null);
+        }
+        this.mqttServiceConfig.setMinReconnectDelayMillis(config.getMinReconnectDelay());
+        this.mqttServiceConfig.setMaxReconnectDelayMillis(config.getMaxReconnectDelay());
+        this.connectTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getConnectTimeout());
+        this.mqttConnectOptions = this.mqttServiceConfig.createMqttConnectOptions(socketFactory);
+    }
+
+    /**
+     * This method connects the client to the MQTT broker and subscribes it to its topic, if it is
+     * a subscriber, as TSelfSignedMQTTService does, retrying until it succeeds or the connect
+     * timeout expires. The time taken to be connected and the number of retries are recorded in
+     * the report. From then on, and until disconnect() is called, the client reconnects every
+     * time the connection is lost.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the connection.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void connect() throws InterruptedException {
+        try {
+            if (this.tlsMQTTClient == null) {
+                this.tlsMQTTClient = new MqttClient(this.brokerURL, this.mqttServiceConfig.getClientID(), null);
+                this.tlsMQTTClient.setCallback(this);
+            }
+        } catch (MqttException e) {
+            this.report.recordConnectFailure(0);
+            return;
+        }
+        // Cleared by whichever comes first: the connection, or the connect timeout.
+        final AtomicBoolean waitingForConnection = new AtomicBoolean(true);
+        final CountDownLatch connectedSignal = new CountDownLatch(1);
+        final AtomicInteger failedAttempts = new AtomicInteger(0);
+        // A stopped reconnector cannot be started again, so there is a new one every round.
+        this.reconnector = new TMQTTReconnector(this.tlsMQTTClient, this.mqttConnectOptions, this.mqttServiceConfig, new TMQTTReconnector.TListener() {
+            @Override
+            public void connecting() {
+            }
+
+            @Override
+            public void connected(int retries, long connectingNanos) {
+                if (waitingForConnection.compareAndSet(true, false)) {
+                    TSimulatedClient.this.report.recordConnect(connectingNanos, retries);
+                    connectedSignal.countDown();
+                } else {
+                    // Reconnected after a connection lost, or connected after the connect storm
+                    // of the round gave up on this client.
+                    TSimulatedClient.this.report.recordReconnect();
+                }
+            }
+
+            @Override
+            public void connectFailed(MqttException e, long retryDelayMillis) {
+                failedAttempts.incrementAndGet();
+            }
+
+            @Override
+            public void connectionLost() {
+            }
+        });
+        this.reconnector.start();
+        if (!connectedSignal.await(this.connectTimeoutMillis, TimeUnit.MILLISECONDS) && waitingForConnection.compareAndSet(true, false)) {
+            this.report.recordConnectFailure(failedAttempts.get());
+        }
+    }
+
+    /**
+     * This method publishes a message on the topic of the client, if it is a publisher and it is
+     * connected.
+     *
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void publish() {
+        if (!this.publisher || (this.tlsMQTTClient == null) || !this.tlsMQTTClient.isConnected()) {
+            return;
+        }
+        byte[] message = this.payload.clone();
+        if (message.length >= TIMESTAMP_SIZE) {
+            ByteBuffer.wrap(message).putLong(System.nanoTime());
+        }
+        try {
+            this.tlsMQTTClient.publish(this.publishTopic, message, this.qos, false);
+            this.report.recordPublished();
+        } catch (MqttException e) {
+            this.report.recordPublishFailure();
+        }
+    }
+
+    /**
+     * This method stops reconnecting and disconnects the client from the MQTT broker.
+     *
+     * @param close TRUE, if the resources of the client have to be released because it will not
+     *              connect again. FALSE, otherwise.
+     * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+     * @since 1.1
+     */
+    public void disconnect(boolean close) {
+        if (this.reconnector != null) {
+            this.reconnector.stop();
+        }
+        if (this.tlsMQTTClient == null) {
+            return;
+        }
+        try {
+            if (this.tlsMQTTClient.isConnected()) {
+                this.tlsMQTTClient.disconnect(1000);
+            }
+            if (close) {
+                this.tlsMQTTClient.close();
+                this.tlsMQTTClient = null;
+            }
+        } catch (MqttException e) {
+            // Nothing to do. The client is being disconnected.
+        }
+    }
+
+    public boolean isPublisher() {
+        return this.publisher;
+    }
+
+    @Override
+    public void connectionLost(Throwable throwable) {
+        this.report.recordConnectionLost();
+        this.reconnector.connectionLost();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
+        byte[] message = mqttMessage.getPayload();
+        if (message.length >= TIMESTAMP_SIZE) {
+            this.report.recordReceived(System.nanoTime() - ByteBuffer.wrap(message).getLong());
+        } else {
+            this.report.recordReceived(-1);
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+    }
+}
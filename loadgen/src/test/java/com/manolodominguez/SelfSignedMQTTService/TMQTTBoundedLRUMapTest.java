@@ -0,0 +1,101 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * This class tests the eviction of entries done by TMQTTBoundedLRUMap when any of its limits is
+ * exceeded.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTBoundedLRUMapTest {
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedWhenMaxEntriesIsExceeded() {
+        TMQTTBoundedLRUMap<String> map = new TMQTTBoundedLRUMap<String>(2, 1024);
+        map.put("a", "A", 1);
+        map.put("b", "B", 1);
+        // Reading "a" makes "b" the least recently used entry.
+        assertEquals("A", map.get("a"));
+        map.put("c", "C", 1);
+        assertNull(map.get("b"));
+        assertEquals(2, map.size());
+        assertEquals(2, map.getBytes());
+    }
+
+    @Test
+    public void entriesAreEvictedUntilMaxBytesIsHonored() {
+        TMQTTBoundedLRUMap<String> map = new TMQTTBoundedLRUMap<String>(10, 100);
+        map.put("a", "A", 40);
+        map.put("b", "B", 40);
+        map.put("c", "C", 90);
+        assertNull(map.get("a"));
+        assertNull(map.get("b"));
+        assertEquals("C", map.get("c"));
+        assertEquals(90, map.getBytes());
+    }
+
+    @Test
+    public void oversizedValueIsNotStoredAndRemovesThePreviousOne() {
+        TMQTTBoundedLRUMap<String> map = new TMQTTBoundedLRUMap<String>(10, 100);
+        map.put("a", "A", 10);
+        map.put("a", "too big", 101);
+        assertNull(map.get("a"));
+        assertEquals(0, map.size());
+        assertEquals(0, map.getBytes());
+    }
+
+    @Test
+    public void replacingAndRemovingKeepTheByteCountAccurate() {
+        TMQTTBoundedLRUMap<String> map = new TMQTTBoundedLRUMap<String>(10, 100);
+        map.put("a", "A", 10);
+        map.put("a", "AA", 20);
+        map.put("b", "B", 5);
+        assertEquals(25, map.getBytes());
+        assertEquals("AA", map.remove("a"));
+        assertNull(map.remove("a"));
+        assertEquals(5, map.getBytes());
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(0, map.getBytes());
+    }
+
+    @Test
+    public void getEntriesDoesNotChangeTheAccessOrder() {
+        TMQTTBoundedLRUMap<String> map = new TMQTTBoundedLRUMap<String>(2, 1024);
+        map.put("a", "A", 1);
+        map.put("b", "B", 1);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(map.getEntries().keySet()));
+        map.put("c", "C", 1);
+        assertNull(map.get("a"));
+        assertEquals(Arrays.asList("b", "c"), new ArrayList<String>(map.getEntries().keySet()));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests the wire format of TMQTTDeltaCodec and its handling of baselines.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTDeltaCodecTest {
+
+    private static final byte KEYFRAME = 0x00;
+    private static final byte DELTA = 0x01;
+
+    private static byte[] stateDocument(int temperature, int humidity) {
+        return ("{\"sensor\":\"kitchen-01\",\"temperature\":" + temperature + ",\"humidity\":" + humidity
+                + ",\"status\":\"ok\",\"firmware\":\"1.4.2\"}").getBytes();
+    }
+
+    @Test
+    public void repetitiveDocumentsAreSentAsSmallerDeltas() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        TMQTTDeltaCodec decoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        byte[] first = stateDocument(21, 40);
+        byte[] firstFrame = encoder.encode("home/kitchen", first, false);
+        assertEquals(KEYFRAME, firstFrame[0]);
+        assertArrayEquals(first, decoder.decode("home/kitchen", firstFrame));
+        byte[] second = stateDocument(22, 41);
+        byte[] secondFrame = encoder.encode("home/kitchen", second, false);
+        assertEquals(DELTA, secondFrame[0]);
+        assertTrue(secondFrame.length < second.length);
+        assertArrayEquals(second, decoder.decode("home/kitchen", secondFrame));
+    }
+
+    @Test
+    public void randomPayloadsRoundTrip() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(5, 4, 64 * 1024);
+        TMQTTDeltaCodec decoder = new TMQTTDeltaCodec(5, 4, 64 * 1024);
+        Random random = new Random(42);
+        byte[] payload = new byte[300];
+        random.nextBytes(payload);
+        for (int i = 0; i < 2000; i++) {
+            String topic = "topic/" + random.nextInt(3);
+            // Mutate, grow or shrink the previous payload, so deltas of every shape are generated.
+            int length = Math.max(0, payload.length + random.nextInt(41) - 20);
+            payload = Arrays.copyOf(payload, length);
+            for (int j = random.nextInt(5); j > 0 && length > 0; j--) {
+                payload[random.nextInt(length)] = (byte) random.nextInt();
+            }
+            byte[] frame = encoder.encode(topic, payload, false);
+            assertArrayEquals(payload, decoder.decode(topic, frame));
+        }
+    }
+
+    @Test
+    public void emptyPayloadRoundTrips() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 1024);
+        TMQTTDeltaCodec decoder = new TMQTTDeltaCodec(20, 16, 1024);
+        assertArrayEquals(new byte[0], decoder.decode("t", encoder.encode("t", new byte[0], false)));
+        assertArrayEquals(new byte[0], decoder.decode("t", encoder.encode("t", new byte[0], false)));
+        byte[] payload = stateDocument(1, 2);
+        assertArrayEquals(payload, decoder.decode("t", encoder.encode("t", payload, false)));
+        assertArrayEquals(new byte[0], decoder.decode("t", encoder.encode("t", new byte[0], false)));
+    }
+
+    @Test
+    public void payloadOverBudgetIsNeverUsedAsBaseline() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 16);
+        byte[] payload = stateDocument(21, 40);
+        assertEquals(KEYFRAME, encoder.encode("t", payload, false)[0]);
+        assertEquals(KEYFRAME, encoder.encode("t", payload, false)[0]);
+        assertEquals(0, encoder.getBaselineBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedTopicIsEvicted() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 2, 1024 * 1024);
+        byte[] payload = stateDocument(21, 40);
+        encoder.encode("a", payload, false);
+        encoder.encode("b", payload, false);
+        encoder.encode("a", payload, false);
+        encoder.encode("c", payload, false);
+        assertEquals(DELTA, encoder.encode("a", payload, false)[0]);
+        assertEquals(KEYFRAME, encoder.encode("b", payload, false)[0]);
+    }
+
+    @Test
+    public void keyframeIsSentAfterKeyframeInterval() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(3, 16, 1024 * 1024);
+        byte[] payload = stateDocument(21, 40);
+        assertEquals(KEYFRAME, encoder.encode("t", payload, false)[0]);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DELTA, encoder.encode("t", payload, false)[0]);
+        }
+        assertEquals(KEYFRAME, encoder.encode("t", payload, false)[0]);
+    }
+
+    @Test
+    public void retainedAndDiscardedBaselinesForceKeyframes() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        byte[] payload = stateDocument(21, 40);
+        encoder.encode("t", payload, false);
+        assertEquals(KEYFRAME, encoder.encode("t", payload, true)[0]);
+        encoder.discardBaseline("t");
+        assertEquals(KEYFRAME, encoder.encode("t", payload, false)[0]);
+        assertEquals(DELTA, encoder.encode("t", payload, false)[0]);
+    }
+
+    @Test
+    public void deltaAgainstUnknownBaselineIsDiscarded() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        TMQTTDeltaCodec decoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        decoder.decode("t", encoder.encode("t", stateDocument(21, 40), false));
+        byte[] lostFrame = encoder.encode("t", stateDocument(22, 40), false);
+        byte[] delta = encoder.encode("t", stateDocument(23, 40), false);
+        assertEquals(DELTA, lostFrame[0]);
+        // The CRC of the baseline does not match the one the decoder has.
+        assertNull(decoder.decode("t", delta));
+        decoder.reset();
+        assertNull(decoder.decode("t", lostFrame));
+    }
+
+    @Test
+    public void malformedFramesAreRejected() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        TMQTTDeltaCodec decoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        decoder.decode("t", encoder.encode("t", stateDocument(21, 40), false));
+        byte[] delta = encoder.encode("t", stateDocument(22, 41), false);
+        assertRejected(decoder, new byte[0]);
+        assertRejected(decoder, "hello".getBytes());
+        assertRejected(decoder, new byte[]{DELTA, 0, 0});
+        assertRejected(decoder, Arrays.copyOf(delta, delta.length - 1));
+        // A rejected frame leaves the baseline untouched.
+        assertArrayEquals(stateDocument(22, 41), decoder.decode("t", delta));
+    }
+
+    @Test
+    public void modifyingADecodedPayloadDoesNotCorruptTheBaseline() {
+        TMQTTDeltaCodec encoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        TMQTTDeltaCodec decoder = new TMQTTDeltaCodec(20, 16, 1024 * 1024);
+        byte[] decoded = decoder.decode("t", encoder.encode("t", stateDocument(21, 40), false));
+        Arrays.fill(decoded, (byte) 'x');
+        assertArrayEquals(stateDocument(22, 41), decoder.decode("t", encoder.encode("t", stateDocument(22, 41), false)));
+    }
+
+    private static void assertRejected(TMQTTDeltaCodec decoder, byte[] frame) {
+        try {
+            decoder.decode("t", frame);
+            fail("Frame should have been rejected: " + Arrays.toString(frame));
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
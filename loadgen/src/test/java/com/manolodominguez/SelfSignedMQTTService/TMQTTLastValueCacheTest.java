@@ -0,0 +1,73 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * This class tests the payloads returned by TMQTTLastValueCache and how they are protected from
+ * modifications done outside the cache.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTLastValueCacheTest {
+
+    @Test
+    public void lastPayloadOfEachTopicIsReturned() {
+        TMQTTLastValueCache cache = new TMQTTLastValueCache(10, 1024);
+        cache.put("home/kitchen", new byte[]{1});
+        cache.put("home/kitchen", new byte[]{2});
+        assertArrayEquals(new byte[]{2}, cache.get("home/kitchen"));
+        assertNull(cache.get("home/garage"));
+        assertEquals(1, cache.getBytes());
+    }
+
+    @Test
+    public void matchingPayloadsAreReturnedFromLeastToMostRecentlyUsed() {
+        TMQTTLastValueCache cache = new TMQTTLastValueCache(10, 1024);
+        cache.put("home/kitchen", new byte[]{1});
+        cache.put("office/desk", new byte[]{2});
+        cache.put("home/garage", new byte[]{3});
+        Map<String, byte[]> matching = cache.getMatching("home/+");
+        assertEquals(Arrays.asList("home/kitchen", "home/garage"), new ArrayList<String>(matching.keySet()));
+    }
+
+    @Test
+    public void modifyingPayloadsOutsideDoesNotCorruptTheCache() {
+        TMQTTLastValueCache cache = new TMQTTLastValueCache(10, 1024);
+        byte[] payload = new byte[]{1, 2, 3};
+        cache.put("home/kitchen", payload);
+        payload[0] = 9;
+        cache.get("home/kitchen")[1] = 9;
+        cache.getMatching("#").get("home/kitchen")[2] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("home/kitchen"));
+    }
+}
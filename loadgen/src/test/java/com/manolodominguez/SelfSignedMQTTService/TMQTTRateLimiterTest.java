@@ -0,0 +1,290 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests how TMQTTRateLimiter keeps queued and spilled messages while the connection to
+ * the remote MQTT broker is down and how it accounts tokens and failures.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTRateLimiterTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int MAX_SPILLED_MESSAGES = 5;
+
+    private File spillDirectory;
+    private TMQTTRateLimiter rateLimiter;
+
+    @Before
+    public void setUp() {
+        this.spillDirectory = new File(System.getProperty("java.io.tmpdir"), "TMQTTRateLimiterTest-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        if (this.rateLimiter != null) {
+            this.rateLimiter.stop();
+        }
+        File[] spillFiles = this.spillDirectory.listFiles();
+        if (spillFiles != null) {
+            for (File spillFile : spillFiles) {
+                spillFile.delete();
+            }
+        }
+        this.spillDirectory.delete();
+    }
+
+    @Test
+    public void queuedMessagesWaitForTheConnection() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.DROP_OLDEST, 10);
+        this.rateLimiter.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(this.rateLimiter.submit("home/kitchen", new byte[]{(byte) i}, 0, false));
+        }
+        Thread.sleep(200);
+        assertEquals(0, publisher.getPublishedTopics().size());
+        assertEquals(3L, this.rateLimiter.getQueuedCount());
+        this.rateLimiter.setConnected(true);
+        publisher.awaitPublished(3);
+        assertEquals(0L, this.rateLimiter.getMetrics().get("failed"));
+    }
+
+    @Test
+    public void notConnectedFailureParksTheWorkerAndReleasesTokens() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        publisher.notConnectedFailures = 1;
+        // A single token that is not refilled during the test. The message can only be published
+        // if the token consumed by the failed attempt is given back.
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(1, 0.001), TMQTTOverflowPolicy.DROP_OLDEST, 10);
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        this.rateLimiter.submit("home/kitchen", new byte[]{1}, 0, false);
+        publisher.awaitAttempts(1);
+        Thread.sleep(200);
+        assertEquals(0, publisher.getPublishedTopics().size());
+        assertEquals(1L, this.rateLimiter.getQueuedCount());
+        this.rateLimiter.setConnected(true);
+        publisher.awaitPublished(1);
+        assertEquals(0L, this.rateLimiter.getMetrics().get("failed"));
+    }
+
+    @Test
+    public void spilledMessagesSurviveARestartUntilPublished() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.SPILL_TO_DISK, 1);
+        this.rateLimiter.start();
+        for (int i = 0; i < 4; i++) {
+            this.rateLimiter.submit("home/" + i, new byte[]{(byte) i}, 1, false);
+        }
+        assertEquals(3L, this.rateLimiter.getMetrics().get("spilled"));
+        // The message queued in memory is spilled ahead of the others when stopping.
+        this.rateLimiter.stop();
+        assertEquals(4, this.spillDirectory.listFiles().length);
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.SPILL_TO_DISK, 1);
+        assertEquals(4L, this.rateLimiter.getQueuedCount());
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        publisher.awaitPublished(4);
+        assertEquals(Arrays.asList("home/0", "home/1", "home/2", "home/3"), publisher.getPublishedTopics());
+        // Spill files are deleted once publish() returns, so wait for the last one.
+        this.awaitSpillFiles(0);
+    }
+
+    @Test
+    public void unpublishedSpilledMessageKeepsItsPlaceWhenStopping() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        publisher.notConnectedFailures = 1;
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.SPILL_TO_DISK, 10);
+        this.rateLimiter.submit("home/0", new byte[]{0}, 1, false);
+        this.rateLimiter.stop();
+        // home/0 is read back from disk and fails to be published, so it is in memory with its
+        // file when stopping again, followed by home/1 and home/2, that have no file.
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.SPILL_TO_DISK, 10);
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        publisher.awaitAttempts(1);
+        this.rateLimiter.submit("home/1", new byte[]{1}, 1, false);
+        this.rateLimiter.submit("home/2", new byte[]{2}, 1, false);
+        assertEquals(0L, this.rateLimiter.getMetrics().get("spilled"));
+        this.rateLimiter.stop();
+        assertEquals(3, this.spillDirectory.listFiles().length);
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.SPILL_TO_DISK, 10);
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        publisher.awaitPublished(3);
+        assertEquals(Arrays.asList("home/0", "home/1", "home/2"), publisher.getPublishedTopics());
+        this.awaitSpillFiles(0);
+    }
+
+    @Test
+    public void oldestSpilledMessagesAreDiscardedOverTheDiskLimit() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.SPILL_TO_DISK, 1);
+        for (int i = 0; i < 10; i++) {
+            this.rateLimiter.submit("home/" + i, new byte[]{(byte) i}, 1, false);
+        }
+        assertEquals(MAX_SPILLED_MESSAGES, this.spillDirectory.listFiles().length);
+        assertEquals(4L, this.rateLimiter.getMetrics().get("dropped"));
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        publisher.awaitPublished(6);
+        assertEquals(Arrays.asList("home/0", "home/5", "home/6", "home/7", "home/8", "home/9"), publisher.getPublishedTopics());
+        this.awaitSpillFiles(0);
+    }
+
+    @Test
+    public void failedMessageIsCountedOnceWhenDiscarded() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        publisher.otherFailures = Integer.MAX_VALUE;
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.DROP_OLDEST, 10);
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        this.rateLimiter.submit("home/kitchen", new byte[]{1}, 0, false);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((this.rateLimiter.getMetrics().get("failed").longValue() == 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(50);
+        }
+        assertEquals(1L, this.rateLimiter.getMetrics().get("failed"));
+        assertEquals(3, publisher.getAttempts());
+        assertEquals(0L, this.rateLimiter.getQueuedCount());
+    }
+
+    @Test
+    public void runtimeFailureDiscardsTheMessageButNotTheWorker() throws Exception {
+        TRecordingPublisher publisher = new TRecordingPublisher();
+        publisher.runtimeFailures = 1;
+        this.rateLimiter = this.createRateLimiter(publisher, new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.DROP_OLDEST, 10);
+        this.rateLimiter.setConnected(true);
+        this.rateLimiter.start();
+        this.rateLimiter.submit("home/kitchen", new byte[]{1}, 0, false);
+        this.rateLimiter.submit("home/garage", new byte[]{2}, 0, false);
+        publisher.awaitPublished(1);
+        assertEquals(Arrays.asList("home/garage"), publisher.getPublishedTopics());
+        assertEquals(1L, this.rateLimiter.getMetrics().get("failed"));
+    }
+
+    @Test
+    public void invalidMessagesAreRejectedBeforeBeingQueued() throws Exception {
+        this.rateLimiter = this.createRateLimiter(new TRecordingPublisher(), new TMQTTTokenBucket(100, 100), TMQTTOverflowPolicy.DROP_OLDEST, 10);
+        assertInvalid("home/kitchen", new byte[]{1}, 3);
+        assertInvalid("home/kitchen", new byte[]{1}, -1);
+        assertInvalid("home/+", new byte[]{1}, 0);
+        assertInvalid("home/#", new byte[]{1}, 0);
+        assertInvalid("", new byte[]{1}, 0);
+        assertInvalid("home/kitchen", null, 0);
+        assertEquals(0L, this.rateLimiter.getQueuedCount());
+    }
+
+    private void assertInvalid(String topic, byte[] payload, int qos) throws MqttException {
+        try {
+            this.rateLimiter.submit(topic, payload, qos, false);
+            fail("Message should have been rejected: " + topic + ", QoS " + qos);
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private void awaitSpillFiles(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((this.spillDirectory.listFiles().length != count) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, this.spillDirectory.listFiles().length);
+    }
+
+    private TMQTTRateLimiter createRateLimiter(TRecordingPublisher publisher, TMQTTTokenBucket connectionBucket, TMQTTOverflowPolicy overflowPolicy, int maxQueuedMessages) {
+        return new TMQTTRateLimiter(publisher, connectionBucket, Collections.<String, TMQTTTokenBucket>emptyMap(), overflowPolicy, maxQueuedMessages, MAX_SPILLED_MESSAGES, this.spillDirectory);
+    }
+
+    /**
+     * This class records the messages published through it and fails the first attempts, if
+     * requested.
+     */
+    private static class TRecordingPublisher implements TMQTTRateLimiter.TPublisher {
+        private List<String> publishedTopics = new ArrayList<String>();
+        private int attempts = 0;
+        private int notConnectedFailures = 0;
+        private int otherFailures = 0;
+        private int runtimeFailures = 0;
+
+        @Override
+        public synchronized void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+            this.attempts++;
+            this.notifyAll();
+            if (this.notConnectedFailures > 0) {
+                this.notConnectedFailures--;
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            if (this.runtimeFailures > 0) {
+                this.runtimeFailures--;
+                throw new IllegalArgumentException("Rejected by the MQTT client");
+            }
+            if (this.otherFailures > 0) {
+                this.otherFailures--;
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+            this.publishedTopics.add(topic);
+        }
+
+        private synchronized List<String> getPublishedTopics() {
+            return new ArrayList<String>(this.publishedTopics);
+        }
+
+        private synchronized int getAttempts() {
+            return this.attempts;
+        }
+
+        private synchronized void awaitPublished(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while ((this.publishedTopics.size() < count) && (System.currentTimeMillis() < deadline)) {
+                this.wait(50);
+            }
+            assertEquals(count, this.publishedTopics.size());
+        }
+
+        private synchronized void awaitAttempts(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while ((this.attempts < count) && (System.currentTimeMillis() < deadline)) {
+                this.wait(50);
+            }
+            assertEquals(count, this.attempts);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests how TMQTTReconnector retries connecting with a bounded backoff, reconnects
+ * after a connection lost and stops retrying when stopped. A minimal broker that accepts any
+ * connection stands in for the remote MQTT broker.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTReconnectorTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 10;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 40;
+
+    private int port;
+    private ServerSocket serverSocket;
+    private BlockingQueue<Socket> acceptedSockets;
+    private BlockingQueue<String> events;
+    private MqttClient mqttClient;
+    private TMQTTReconnector reconnector;
+
+    @Before
+    public void setUp() throws Exception {
+        // Nothing listens at this port until the broker is started.
+        ServerSocket freePort = new ServerSocket(0);
+        this.port = freePort.getLocalPort();
+        freePort.close();
+        this.acceptedSockets = new LinkedBlockingQueue<Socket>();
+        this.events = new LinkedBlockingQueue<String>();
+        this.mqttClient = new MqttClient("tcp://localhost:" + this.port, "TMQTTReconnectorTest", null);
+        this.mqttClient.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable throwable) {
+                TMQTTReconnectorTest.this.reconnector.connectionLost();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage mqttMessage) {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+            }
+        });
+        TMQTTServiceConfig config = new TMQTTServiceConfig();
+        config.setSucribeTopic(null);
+        config.setMinReconnectDelayMillis(MIN_RECONNECT_DELAY_MILLIS);
+        config.setMaxReconnectDelayMillis(MAX_RECONNECT_DELAY_MILLIS);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setConnectionTimeout(1);
+        this.reconnector = new TMQTTReconnector(this.mqttClient, options, config, new TMQTTReconnector.TListener() {
+            @Override
+            public void connecting() {
+            }
+
+            @Override
+            public void connected(int retries, long connectingNanos) {
+                TMQTTReconnectorTest.this.events.add("connected after " + retries + " retries");
+            }
+
+            @Override
+            public void connectFailed(MqttException e, long retryDelayMillis) {
+                // Called from the connection thread, so a failed assertion here would be lost.
+                if ((retryDelayMillis < MIN_RECONNECT_DELAY_MILLIS / 2) || (retryDelayMillis > MAX_RECONNECT_DELAY_MILLIS)) {
+                    TMQTTReconnectorTest.this.events.add("failed with a delay of " + retryDelayMillis + " ms");
+                } else {
+                    TMQTTReconnectorTest.this.events.add("failed");
+                }
+            }
+
+            @Override
+            public void connectionLost() {
+                TMQTTReconnectorTest.this.events.add("lost");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.reconnector.stop();
+        if (this.serverSocket != null) {
+            this.serverSocket.close();
+        }
+        for (Socket socket : this.acceptedSockets) {
+            socket.close();
+        }
+        if (this.mqttClient.isConnected()) {
+            this.mqttClient.disconnect(100);
+        }
+        this.mqttClient.close();
+    }
+
+    @Test
+    public void retriesUntilTheBrokerIsReachable() throws Exception {
+        this.reconnector.start();
+        assertEquals("failed", this.nextEvent());
+        assertEquals("failed", this.nextEvent());
+        this.startBroker();
+        // Attempts could have failed before the broker started listening.
+        String event = this.nextEvent();
+        while (event.equals("failed")) {
+            event = this.nextEvent();
+        }
+        assertTrue(event, event.matches("connected after [0-9]+ retries"));
+        assertTrue(event, Integer.parseInt(event.replaceAll("[^0-9]", "")) >= 2);
+        assertTrue(this.mqttClient.isConnected());
+    }
+
+    @Test
+    public void reconnectsAfterTheConnectionIsLost() throws Exception {
+        this.startBroker();
+        this.reconnector.start();
+        assertEquals("connected after 0 retries", this.nextEvent());
+        this.acceptedSockets.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).close();
+        assertEquals("lost", this.nextEvent());
+        assertEquals("connected after 0 retries", this.nextEvent());
+    }
+
+    @Test
+    public void stopEndsRetrying() throws Exception {
+        this.reconnector.start();
+        assertEquals("failed", this.nextEvent());
+        this.reconnector.stop();
+        assertTrue(this.reconnector.isStopped());
+        // An attempt in progress when stopping is not reported.
+        Thread.sleep(MAX_RECONNECT_DELAY_MILLIS * 5);
+        this.events.clear();
+        Thread.sleep(MAX_RECONNECT_DELAY_MILLIS * 5);
+        assertNull(this.events.poll());
+        this.reconnector.start();
+        this.reconnector.connectionLost();
+        assertNull(this.events.poll(MAX_RECONNECT_DELAY_MILLIS * 5, TimeUnit.MILLISECONDS));
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = this.events.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(event);
+        return event;
+    }
+
+    private void startBroker() throws IOException {
+        this.serverSocket = new ServerSocket(this.port);
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = TMQTTReconnectorTest.this.serverSocket.accept();
+                        // Reads the CONNECT packet and accepts the connection.
+                        DataInputStream input = new DataInputStream(socket.getInputStream());
+                        input.readUnsignedByte();
+                        int remainingLength = 0;
+                        int multiplier = 1;
+                        int digit;
+                        do {
+                            digit = input.readUnsignedByte();
+                            remainingLength += (digit & 0x7F) * multiplier;
+                            multiplier *= 128;
+                        } while ((digit & 0x80) != 0);
+                        input.readFully(new byte[remainingLength]);
+                        OutputStream output = socket.getOutputStream();
+                        output.write(new byte[]{0x20, 0x02, 0x00, 0x00});
+                        output.flush();
+                        TMQTTReconnectorTest.this.acceptedSockets.add(socket);
+                    }
+                } catch (IOException e) {
+                    // The broker has been closed.
+                }
+            }
+        }, "TMQTTReconnectorTest broker");
+        broker.setDaemon(true);
+        broker.start();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+*                                  The MIT License (MIT)
+*
+* Copyright (c) 2014 - Manuel Domínguez Dorado <ingeniero@ManoloDominguez.com>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+* associated documentation files (the "Software"), to deal in the Software without restriction,
+* including without limitation the rights to use, copy, modify, merge, publish, distribute,
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+*     The above copyright notice and this permission notice shall be included in all copies or
+*     substantial portions of the Software.
+*
+*     THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+*     BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+*     NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+*     DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+*     OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.manolodominguez.SelfSignedMQTTService;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the matching of topics against MQTT topic filters done by TMQTTTopicFilter.
+ *
+ * @author Manuel Domínguez Dorado - ingeniero@ManoloDominguez.com
+ * @version 1.1
+ */
+public class TMQTTTopicFilterTest {
+
+    @Test
+    public void exactFilterMatchesOnlyTheSameTopic() {
+        assertTrue(TMQTTTopicFilter.isMatched("home/kitchen", "home/kitchen"));
+        assertFalse(TMQTTTopicFilter.isMatched("home/kitchen", "home/kitchen/temperature"));
+        assertFalse(TMQTTTopicFilter.isMatched("home/kitchen", "home"));
+    }
+
+    @Test
+    public void plusMatchesExactlyOneLevel() {
+        assertTrue(TMQTTTopicFilter.isMatched("home/+/temperature", "home/kitchen/temperature"));
+        assertTrue(TMQTTTopicFilter.isMatched("home/+", "home/"));
+        assertFalse(TMQTTTopicFilter.isMatched("home/+/temperature", "home/kitchen/oven/temperature"));
+        assertFalse(TMQTTTopicFilter.isMatched("home/+", "home"));
+    }
+
+    @Test
+    public void hashMatchesTheParentAndAnyNumberOfLevels() {
+        assertTrue(TMQTTTopicFilter.isMatched("home/#", "home"));
+        assertTrue(TMQTTTopicFilter.isMatched("home/#", "home/kitchen"));
+        assertTrue(TMQTTTopicFilter.isMatched("home/#", "home/kitchen/temperature"));
+        assertTrue(TMQTTTopicFilter.isMatched("#", "home/kitchen"));
+        assertFalse(TMQTTTopicFilter.isMatched("home/#", "office/kitchen"));
+    }
+
+    @Test
+    public void leadingWildcardsDoNotMatchDollarTopics() {
+        assertFalse(TMQTTTopicFilter.isMatched("#", "$SYS/broker/uptime"));
+        assertFalse(TMQTTTopicFilter.isMatched("+/broker/uptime", "$SYS/broker/uptime"));
+        assertTrue(TMQTTTopicFilter.isMatched("$SYS/#", "$SYS/broker/uptime"));
+        assertTrue(TMQTTTopicFilter.isMatched("$SYS/+/uptime", "$SYS/broker/uptime"));
+    }
+}